@@ -0,0 +1,158 @@
+package mlap_prog;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+
+// The reward values an emission can take, mapped to symbol ids 0 to size()-1 in ascending order of reward
+public class Alphabet {
+
+	// Rewards -1, 0, 1 as used by task1.dat and task2.dat:
+	public static final Alphabet DEFAULT = new Alphabet(new int[]{-1, 0, 1});
+
+	// Text files can declare their rewards on the first line, e.g. "# rewards -2 -1 0 1 2"
+	public static final String HEADER_PREFIX = "# rewards";
+
+	// Rewards spread over a range wider than this many entries per reward are looked up by binary search instead:
+	private static final int MAX_INDEX_PER_REWARD = 16;
+
+	private int[] rewards;
+
+	// symbolIndex[reward - minReward] is the symbol id of reward, or -1 if it isn't in the alphabet
+	// null for sparse rewards, whose symbol id is their position in rewards
+	private int minReward;
+	private int[] symbolIndex;
+
+	public Alphabet(int[] rewards)
+	{
+		if(rewards.length == 0)
+			throw new IllegalArgumentException("An alphabet needs at least one reward");
+
+		this.rewards = rewards.clone();
+		Arrays.sort(this.rewards);
+
+		for(int symbol = 1; symbol < this.rewards.length; symbol++)
+		{
+			if(this.rewards[symbol] == this.rewards[symbol - 1])
+				throw new IllegalArgumentException("Reward " + this.rewards[symbol] + " appears more than once in the alphabet");
+		}
+
+		minReward = this.rewards[0];
+		long range = (long) this.rewards[this.rewards.length - 1] - minReward + 1;
+		if(range > (long) MAX_INDEX_PER_REWARD*this.rewards.length)
+			return;
+
+		symbolIndex = new int[(int) range];
+		Arrays.fill(symbolIndex, -1);
+		for(int symbol = 0; symbol < this.rewards.length; symbol++)
+			symbolIndex[this.rewards[symbol] - minReward] = symbol;
+	}
+
+	public int size()
+	{
+		return rewards.length;
+	}
+
+	public int getReward(int symbol)
+	{
+		return rewards[symbol];
+	}
+
+	public int[] getRewards()
+	{
+		return rewards.clone();
+	}
+
+	public boolean contains(int reward)
+	{
+		return findSymbol(reward) != -1;
+	}
+
+	public int getSymbol(int reward)
+	{
+		int symbol = findSymbol(reward);
+		if(symbol == -1)
+			throw new IllegalArgumentException("Reward " + reward + " is not in the alphabet " + Arrays.toString(rewards));
+
+		return symbol;
+	}
+
+	// The symbol id of reward, or -1 if it isn't in the alphabet
+	private int findSymbol(int reward)
+	{
+		if(symbolIndex == null)
+		{
+			int symbol = Arrays.binarySearch(rewards, reward);
+			return symbol < 0 ? -1 : symbol;
+		}
+
+		long index = (long) reward - minReward;
+		return index >= 0 && index < symbolIndex.length ? symbolIndex[(int) index] : -1;
+	}
+
+	public String toHeader()
+	{
+		StringBuilder header = new StringBuilder(HEADER_PREFIX);
+		for(int reward : rewards)
+			header.append(' ').append(reward);
+
+		return header.toString();
+	}
+
+	// Parses a "# rewards ..." line, returns null if the line isn't a header
+	public static Alphabet parseHeader(String line) throws IOException
+	{
+		if(!line.startsWith(HEADER_PREFIX))
+			return null;
+
+		String[] parts = line.substring(HEADER_PREFIX.length()).trim().split("\\s+");
+		int[] rewards = new int[parts.length];
+		try
+		{
+			for(int i = 0; i < parts.length; i++)
+				rewards[i] = Integer.parseInt(parts[i]);
+
+			return new Alphabet(rewards);
+		}
+		catch(IllegalArgumentException e)
+		{
+			// Including NumberFormatException for rewards that aren't ints:
+			throw new IOException("Invalid rewards header, " + e.getMessage() + ": " + line, e);
+		}
+	}
+
+	// Reads the alphabet declared by a text or binary episode file, or DEFAULT if it doesn't declare one
+	public static Alphabet fromFile(String fileName) throws IOException
+	{
+		if(BinaryEpisodeFormat.isBinaryFile(fileName))
+		{
+			DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+			try
+			{
+				return BinaryEpisodeFormat.readAlphabet(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+
+		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		try
+		{
+			String line = br.readLine();
+			while(line != null && line.isEmpty())
+				line = br.readLine();
+
+			Alphabet alphabet = line == null ? null : parseHeader(line);
+			return alphabet == null ? DEFAULT : alphabet;
+		}
+		finally
+		{
+			br.close();
+		}
+	}
+}
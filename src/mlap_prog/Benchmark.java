@@ -0,0 +1,612 @@
+package mlap_prog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+/*
+ Micro benchmarks for the E-step and full EM iterations of Grid and OptimisedGrid.
+
+ Usage: Benchmark [sizes] [episodeCounts] [lengths] [warmup] [iterations]
+ where sizes, episodeCounts and lengths are comma separated, e.g. Benchmark 4,8 100,1000 20,200 3 5
+
+ Benchmark acceleration [runs] [file rows columns] compares plain EM with SQUAREM from the same random starting points,
+ on the given file or on task2.dat and a synthetic data set. It then trains the walls model of a dense Grid with SQUAREM
+ and fails with an exception if a transition that started at 0, e.g. through a wall, doesn't end at 0.
+
+ Benchmark kernels [sizes] [episodes] [length] times the E-step of a plain Grid with the CSR loops and with DenseKernel
+ at several batch sizes, e.g. Benchmark kernels 8,16 200 50
+
+ Benchmark visible [size] [episodes] [length] times the counting of visible episodes held in memory and memory mapped,
+ on one thread and across every core, e.g. Benchmark visible 8 20000 100
+
+ Benchmark allocation [steps] checks that the M-step and a whole serial EM iteration allocate nothing once they're warmed up,
+ on a Grid and an OptimisedGrid, by reading the thread's allocation counter around several rounds of steps repetitions.
+ It fails with an exception if every round allocated, i.e. the allocation grows with the steps, e.g. Benchmark allocation 200
+
+ Benchmark filter [size] [sessions] [length] [targetMicros] feeds reward streams to ForwardFilter sessions one reward at a time,
+ every session in turn as a live service would, on every core. It reports the latency percentiles of single updates and
+ whether the p99 is under the target, e.g. Benchmark filter 16 10000 200 10
+
+ Synthetic reward-only episodes are sampled from a random grid with a fixed seed so every run measures the same data,
+ and every model starts from seeded random parameters, with walls for OptimisedGrid as in task 4.
+ Each benchmark is run for warmup iterations to let the JIT compile the loops, then timed for the measured iterations.
+ Bytes allocated per operation are read from the thread's allocation counter where the JVM supports it (-1 otherwise),
+ a steady state emIteration should allocate nothing.
+
+ This is a small harness rather than JMH, as the project is compiled with plain javac and has no build tool to pull JMH in.
+ Everything runs in one JVM without forks, so the JIT profile of one benchmark can affect the next, and there's no
+ protection against dead code elimination besides the sink. The numbers are for comparing benchmarks of the same run,
+ every table says so in its first line.
+ */
+public class Benchmark {
+
+	private static final long SEED = 42;
+
+	// Rounds of Benchmark allocation, each one a chance to see no allocation at all:
+	private static final int ALLOCATION_ROUNDS = 5;
+
+	// Results are added here so the JIT can't remove the work being measured:
+	private static volatile double sink;
+
+	private int warmup, iterations;
+
+	public Benchmark(int warmup, int iterations)
+	{
+		this.warmup = warmup;
+		this.iterations = iterations;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException
+	{
+		if(args.length > 0 && args[0].equals("acceleration"))
+		{
+			int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+			System.out.println("# One JVM, no warmup: the times include JIT compilation, compare E-steps rather than ms");
+			System.out.println(String.format("%-12s %4s %-10s %8s %16s %12s", "data", "run", "method", "E-steps", "log likelihood", "ms"));
+			if(args.length > 4)
+			{
+				compareAcceleration(args[2], args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]), runs);
+				checkAcceleratedZeros(args[2], args[2], Integer.parseInt(args[3]), Integer.parseInt(args[4]), runs);
+			}
+			else
+			{
+				compareAcceleration("task2.dat", "task2.dat", 4, 4, runs);
+				checkAcceleratedZeros("task2.dat", "task2.dat", 4, 4, runs);
+
+				File data = writeEpisodes(4, 200, 20);
+				try
+				{
+					compareAcceleration("synthetic", data.getPath(), 4, 4, runs);
+				}
+				finally
+				{
+					data.delete();
+				}
+			}
+			return;
+		}
+
+		if(args.length > 0 && args[0].equals("visible"))
+		{
+			int size = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+			int numEpisodes = args.length > 2 ? Integer.parseInt(args[2]) : 20000;
+			int length = args.length > 3 ? Integer.parseInt(args[3]) : 100;
+
+			Grid model = new Grid(size, size);
+			model.makeGridRandom(new Random(SEED));
+			File data = File.createTempFile("benchmark", ".bin");
+			try
+			{
+				new EpisodeGenerator(model, SEED).write(data.getPath(), EpisodeGenerator.Format.BINARY, numEpisodes, length, length);
+
+				Benchmark benchmark = new Benchmark(3, 5);
+				benchmark.printHeader();
+				benchmark.runVisible(new Grid(size, size, data.getPath()), "in memory", size, numEpisodes, length);
+				benchmark.runVisible(new Grid(size, size, data.getPath(), true), "mapped", size, numEpisodes, length);
+			}
+			finally
+			{
+				data.delete();
+			}
+			return;
+		}
+
+		if(args.length > 0 && args[0].equals("allocation"))
+		{
+			checkAllocation(args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+			return;
+		}
+
+		if(args.length > 0 && args[0].equals("filter"))
+		{
+			int size = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+			int numSessions = args.length > 2 ? Integer.parseInt(args[2]) : 10000;
+			int length = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+			double targetMicros = args.length > 4 ? Double.parseDouble(args[4]) : 10.0;
+			runFilter(size, numSessions, length, targetMicros);
+			return;
+		}
+
+		if(args.length > 0 && args[0].equals("kernels"))
+		{
+			int[] sizes = parseList(args.length > 1 ? args[1] : "8,16");
+			int numEpisodes = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+			int length = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+
+			Benchmark benchmark = new Benchmark(3, 5);
+			benchmark.printHeader();
+			for(int size : sizes)
+			{
+				File data = writeEpisodes(size, numEpisodes, length);
+				try
+				{
+					benchmark.runKernels(new Grid(size, size, data.getPath()), size, numEpisodes, length);
+				}
+				finally
+				{
+					data.delete();
+				}
+			}
+			return;
+		}
+
+		int[] sizes = parseList(args.length > 0 ? args[0] : "4,8");
+		int[] episodeCounts = parseList(args.length > 1 ? args[1] : "100,1000");
+		int[] lengths = parseList(args.length > 2 ? args[2] : "20,200");
+		int warmup = args.length > 3 ? Integer.parseInt(args[3]) : 3;
+		int iterations = args.length > 4 ? Integer.parseInt(args[4]) : 5;
+
+		Benchmark benchmark = new Benchmark(warmup, iterations);
+		benchmark.printHeader();
+
+		for(int size : sizes)
+		{
+			for(int numEpisodes : episodeCounts)
+			{
+				for(int length : lengths)
+				{
+					File data = writeEpisodes(size, numEpisodes, length);
+					try
+					{
+						benchmark.runAll(new Grid(size, size, data.getPath()), "Grid", size, numEpisodes, length);
+
+						OptimisedGrid optimised = new OptimisedGrid(size, size, data.getPath());
+						benchmark.runAll(optimised, "OptimisedGrid", size, numEpisodes, length);
+					}
+					finally
+					{
+						data.delete();
+					}
+				}
+			}
+		}
+	}
+
+	// Benchmarks every stage of EM on one grid, starting from seeded random parameters, with walls on an OptimisedGrid
+	public void runAll(final Grid grid, String name, int size, int numEpisodes, int length)
+	{
+		// Nothing is printed while benchmarking:
+		grid.setOutput(new PrintStream(new ByteArrayOutputStream()));
+		if(grid instanceof OptimisedGrid)
+			grid.makeGridWalls(new Random(SEED + 1));
+		else
+			grid.makeGridRandom(new Random(SEED + 1));
+
+		final ExpectedCounts counts = new ExpectedCounts(grid.getTransitionStructure(), grid.params.getNumSymbols());
+		final Episode first = grid.episodes.get(0);
+		final ArrayList<Move> moves = first.getMoves();
+
+		report(name, size, numEpisodes, length, "calcForwardBack", measure(new Runnable(){
+
+			public void run()
+			{
+				grid.calcForwardBack();
+			}
+		}));
+
+		report(name, size, numEpisodes, length, "getLogLikelihood", measure(new Runnable(){
+
+			public void run()
+			{
+				sink += grid.getLogLikelihood();
+			}
+		}));
+
+		// One joint probability per step of the first episode:
+		report(name, size, numEpisodes, length, "calcJointProb", measure(new Runnable(){
+
+			public void run()
+			{
+				double total = 0.0;
+				for(int t = 0; t < moves.size() - 1; t++)
+					total += grid.calcJointProb(moves.get(t), moves.get(t + 1), grid.states[0], grid.states[1]);
+				sink += total;
+			}
+		}));
+
+		report(name, size, numEpisodes, length, "emIteration", measure(new Runnable(){
+
+			public void run()
+			{
+				grid.expectationStep(counts, null);
+				grid.maximisationStep(counts);
+				sink += counts.getLogLikelihood();
+			}
+		}));
+	}
+
+	// Times the E-step with the CSR loops and then with DenseKernel batches of 1, 8 and 32 episodes
+	public void runKernels(final Grid grid, int size, int numEpisodes, int length)
+	{
+		grid.setOutput(new PrintStream(new ByteArrayOutputStream()));
+		grid.makeGridRandom(new Random(SEED + 1));
+
+		final ExpectedCounts counts = new ExpectedCounts(grid.getTransitionStructure(), grid.params.getNumSymbols());
+		Runnable eStep = new Runnable(){
+
+			public void run()
+			{
+				grid.expectationStep(counts, null);
+				sink += counts.getLogLikelihood();
+			}
+		};
+
+		int[] batchSizes = {0, 1, 8, 32};
+		for(int batchSize : batchSizes)
+		{
+			grid.setKernelBatchSize(batchSize);
+			report("Grid", size, numEpisodes, length, batchSize == 0 ? "eStep CSR" : "eStep kernel x" + batchSize, measure(eStep));
+		}
+		grid.setKernelBatchSize(0);
+	}
+
+	// Times countVisible on the calling thread and then across a pool with a thread per core
+	public void runVisible(final Grid grid, String name, int size, int numEpisodes, int length)
+	{
+		Runnable count = new Runnable(){
+
+			public void run()
+			{
+				sink += grid.countVisible().getNumEpisodes();
+			}
+		};
+
+		report(name, size, numEpisodes, length, "countVisible", measure(count));
+
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		grid.setForkJoinPool(pool);
+		report(name, size, numEpisodes, length, "countVisible x" + pool.getParallelism(), measure(count));
+		grid.setForkJoinPool(null);
+		pool.shutdown();
+	}
+
+	// Trains with plain EM and with SQUAREM from the same seeded random starting points, then prints the mean of each
+	// The seeds start after SEED, so no run starts from the model that generated the synthetic data
+	public static void compareAcceleration(String name, String file, int rows, int columns, int runs)
+	{
+		double[] totalSteps = new double[2];
+		double[] totalMillis = new double[2];
+		for(int run = 0; run < runs; run++)
+		{
+			for(int method = 0; method < 2; method++)
+			{
+				Grid grid = new Grid(rows, columns, file);
+				grid.setOutput(new PrintStream(new ByteArrayOutputStream()));
+				grid.makeGridRandom(new Random(SEED + run + 1));
+				grid.setAccelerated(method == 1);
+
+				long start = System.nanoTime();
+				double likelihood = grid.findHiddenParameters();
+				double millis = (System.nanoTime() - start)/1e6;
+
+				totalSteps[method] += grid.getLastRunIterations();
+				totalMillis[method] += millis;
+				System.out.println(String.format("%-12s %4d %-10s %8d %16.3f %12.1f", name, run + 1, method == 1 ? "SQUAREM" : "EM", grid.getLastRunIterations(), likelihood, millis));
+			}
+		}
+
+		for(int method = 0; method < 2; method++)
+			System.out.println(String.format("%-12s %4s %-10s %8.1f %16s %12.1f", name, "mean", method == 1 ? "SQUAREM" : "EM", totalSteps[method]/runs, "", totalMillis[method]/runs));
+		System.out.println();
+	}
+
+	// Trains the walls model of a dense Grid with SQUAREM from seeded starting points, and throws if a transition that
+	// started at 0 has moved, as plain EM keeps it at 0
+	public static void checkAcceleratedZeros(String name, String file, int rows, int columns, int runs)
+	{
+		System.out.println(String.format("%-12s %4s %-10s %8s %8s %8s", "data", "run", "method", "jumps", "zeros", "moved"));
+		int totalMoved = 0;
+		for(int run = 0; run < runs; run++)
+		{
+			Grid grid = new Grid(rows, columns, file);
+			grid.setOutput(new PrintStream(new ByteArrayOutputStream()));
+			grid.makeGridWalls(new Random(SEED + run + 1));
+			grid.setAccelerated(true);
+
+			double[] start = grid.getParameters().getTransitionArray().clone();
+			grid.findHiddenParameters();
+			double[] end = grid.getParameters().getTransitionArray();
+
+			int zeros = 0;
+			int moved = 0;
+			for(int k = 0; k < start.length; k++)
+			{
+				if(start[k] == 0.0)
+				{
+					zeros++;
+					if(end[k] != 0.0)
+						moved++;
+				}
+			}
+			totalMoved += moved;
+			System.out.println(String.format("%-12s %4d %-10s %8d %8d %8d", name, run + 1, "walls", grid.getLastRunAcceptedJumps(), zeros, moved));
+		}
+		System.out.println();
+
+		if(totalMoved > 0)
+			throw new IllegalStateException("SQUAREM moved " + totalMoved + " transitions away from 0 on " + name);
+	}
+
+	// Runs maximisationStep and whole EM iterations in rounds of steps after as many warmup steps, and throws if they allocate
+	public static void checkAllocation(int steps) throws IOException
+	{
+		if(getAllocatedBytes() < 0)
+		{
+			System.out.println("The JVM can't count the bytes a thread allocates, nothing was checked");
+			return;
+		}
+
+		ArrayList<String> failures = new ArrayList<String>();
+		File data = writeEpisodes(4, 100, 20);
+		try
+		{
+			System.out.println(String.format("%-14s %-18s %12s", "grid", "benchmark", "min bytes"));
+			Grid[] grids = {new Grid(4, 4, data.getPath()), new OptimisedGrid(4, 4, data.getPath())};
+			for(final Grid grid : grids)
+			{
+				String name = grid instanceof OptimisedGrid ? "OptimisedGrid" : "Grid";
+				if(grid instanceof OptimisedGrid)
+					grid.makeGridWalls(new Random(SEED + 1));
+				else
+					grid.makeGridRandom(new Random(SEED + 1));
+
+				final ExpectedCounts counts = new ExpectedCounts(grid.getTransitionStructure(), grid.params.getNumSymbols());
+				grid.expectationStep(counts, null);
+
+				long mStepBytes = getMinAllocatedBytes(new Runnable(){
+
+					public void run()
+					{
+						grid.maximisationStep(counts);
+					}
+				}, steps, ALLOCATION_ROUNDS);
+
+				long emBytes = getMinAllocatedBytes(new Runnable(){
+
+					public void run()
+					{
+						grid.expectationStep(counts, null);
+						grid.maximisationStep(counts);
+						sink += counts.getLogLikelihood();
+					}
+				}, steps, ALLOCATION_ROUNDS);
+
+				System.out.println(String.format("%-14s %-18s %12d", name, "maximisationStep", mStepBytes));
+				System.out.println(String.format("%-14s %-18s %12d", name, "emIteration", emBytes));
+				if(mStepBytes > 0)
+					failures.add(name + " maximisationStep");
+				if(emBytes > 0)
+					failures.add(name + " emIteration");
+			}
+		}
+		finally
+		{
+			data.delete();
+		}
+
+		if(!failures.isEmpty())
+			throw new IllegalStateException("Allocated in every round of " + steps + " steps: " + failures);
+		System.out.println("At least one round of " + steps + " steps allocated nothing");
+	}
+
+	/*
+	 The fewest bytes allocated by any of rounds runs of steps operations, after as many warmup steps.
+	 An allocation in every operation shows up in every round, while a one-off, e.g. while the JIT deoptimises the loop,
+	 only shows up in one of them.
+	 */
+	private static long getMinAllocatedBytes(Runnable op, int steps, int rounds)
+	{
+		for(int i = 0; i < steps; i++)
+			op.run();
+
+		// Reading the counter allocates a little itself:
+		long overhead = -getAllocatedBytes() + getAllocatedBytes();
+
+		long min = Long.MAX_VALUE;
+		for(int round = 0; round < rounds; round++)
+		{
+			long start = getAllocatedBytes();
+			for(int i = 0; i < steps; i++)
+				op.run();
+			min = Math.min(min, Math.max(0, getAllocatedBytes() - start - overhead));
+		}
+		return min;
+	}
+
+	/*
+	 Times every update of numSessions filter sessions on an OptimisedGrid. The sessions are split between one thread per core,
+	 each thread feeding the next reward to each of its sessions in turn. The first pass over the streams warms up the JIT,
+	 the second is measured.
+	 */
+	public static void runFilter(int size, final int numSessions, final int length, double targetMicros) throws InterruptedException
+	{
+		OptimisedGrid model = new OptimisedGrid(size, size);
+		model.makeGridRandom(new Random(SEED));
+		final ForwardFilter filter = new ForwardFilter(model);
+
+		// One reward stream per session, sampled from the model:
+		EpisodeGenerator generator = new EpisodeGenerator(model, SEED);
+		final int[][] symbols = new int[numSessions][length];
+		int[] stateIds = new int[length];
+		for(int i = 0; i < numSessions; i++)
+			generator.sampleEpisode(length, stateIds, symbols[i]);
+
+		final int numThreads = Math.min(Runtime.getRuntime().availableProcessors(), numSessions);
+		final long[][] latencies = new long[numThreads][];
+		final long[] allocated = new long[numThreads];
+		final long[] elapsed = new long[numThreads];
+
+		Thread[] threads = new Thread[numThreads];
+		for(int i = 0; i < numThreads; i++)
+		{
+			final int thread = i;
+			threads[i] = new Thread(new Runnable(){
+
+				@Override
+				public void run()
+				{
+					// Every numThreads'th session belongs to this thread:
+					int count = (numSessions - thread + numThreads - 1)/numThreads;
+					ForwardFilter.Session[] sessions = new ForwardFilter.Session[count];
+					for(int j = 0; j < count; j++)
+						sessions[j] = filter.newSession();
+
+					long[] times = new long[count*length];
+					double total = 0.0;
+					for(int pass = 0; pass < 2; pass++)
+					{
+						for(int j = 0; j < count; j++)
+							sessions[j].reset();
+
+						int n = 0;
+						long startBytes = getAllocatedBytes();
+						long passStart = System.nanoTime();
+						for(int t = 0; t < length; t++)
+						{
+							for(int j = 0; j < count; j++)
+							{
+								int symbol = symbols[thread + j*numThreads][t];
+								long start = System.nanoTime();
+								total += sessions[j].observeSymbol(symbol);
+								times[n++] = System.nanoTime() - start;
+							}
+						}
+						elapsed[thread] = System.nanoTime() - passStart;
+						allocated[thread] = getAllocatedBytes() - startBytes;
+					}
+					sink = total;
+					latencies[thread] = times;
+				}
+			}, "filter " + i);
+		}
+		for(Thread thread : threads)
+			thread.start();
+		for(Thread thread : threads)
+			thread.join();
+
+		// Every update of every thread, sorted for the percentiles:
+		int numUpdates = numSessions*length;
+		long[] all = new long[numUpdates];
+		int n = 0;
+		long allBytes = 0, maxElapsed = 0;
+		for(int i = 0; i < numThreads; i++)
+		{
+			System.arraycopy(latencies[i], 0, all, n, latencies[i].length);
+			n += latencies[i].length;
+			allBytes += allocated[i];
+			maxElapsed = Math.max(maxElapsed, elapsed[i]);
+		}
+		Arrays.sort(all);
+
+		System.out.println("# One JVM, no forks: the first pass over the streams is the warmup, the second is timed");
+		System.out.println(String.format("%-14s %5s %9s %7s %7s %12s %9s %9s %9s %9s %12s", "grid", "size", "sessions", "length", "threads", "updates/s", "p50 us", "p99 us", "p99.9 us", "max us", "bytes/op"));
+		System.out.println(String.format("%-14s %2dx%-2d %9d %7d %7d %12.0f %9.3f %9.3f %9.3f %9.3f %12.3f", "OptimisedGrid", size, size, numSessions, length, numThreads,
+				numUpdates/(maxElapsed/1e9), percentile(all, 0.5)/1e3, percentile(all, 0.99)/1e3, percentile(all, 0.999)/1e3, all[all.length - 1]/1e3, (double) allBytes/numUpdates));
+
+		double p99 = percentile(all, 0.99)/1e3;
+		System.out.println(String.format("p99 of %.3f us %s the target of %.3f us", p99, p99 <= targetMicros ? "meets" : "misses", targetMicros));
+	}
+
+	// The smallest value at or above the fraction q of the sorted values
+	private static long percentile(long[] sorted, double q)
+	{
+		int index = (int) Math.ceil(q*sorted.length) - 1;
+		return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+	}
+
+	// Prints the caveats of the harness and the column names
+	public void printHeader()
+	{
+		System.out.println(String.format("# One JVM, no forks: %d warmup and %d measured iterations per benchmark, compare results of the same run only", warmup, iterations));
+		System.out.println(String.format("%-14s %5s %9s %7s %-18s %12s %12s %12s", "grid", "size", "episodes", "length", "benchmark", "ms/op", "stddev", "bytes/op"));
+	}
+
+	// Returns the mean and standard deviation in milliseconds of the measured iterations, and the mean bytes allocated
+	public double[] measure(Runnable op)
+	{
+		for(int i = 0; i < warmup; i++)
+			op.run();
+
+		double[] times = new double[iterations];
+		long startBytes = getAllocatedBytes();
+		for(int i = 0; i < iterations; i++)
+		{
+			long start = System.nanoTime();
+			op.run();
+			times[i] = (System.nanoTime() - start)/1e6;
+		}
+		long endBytes = getAllocatedBytes();
+
+		// Reading the counter allocates a little itself:
+		long overhead = -getAllocatedBytes() + getAllocatedBytes();
+
+		double mean = 0.0;
+		for(double time : times)
+			mean += time;
+		mean /= iterations;
+
+		double variance = 0.0;
+		for(double time : times)
+			variance += (time - mean)*(time - mean);
+
+		double bytes = startBytes < 0 ? -1 : (double) Math.max(0, endBytes - startBytes - overhead)/iterations;
+		return new double[]{mean, Math.sqrt(variance/iterations), bytes};
+	}
+
+	private static long getAllocatedBytes()
+	{
+		return EMMetrics.getThreadAllocatedBytes();
+	}
+
+	private static void report(String name, int size, int numEpisodes, int length, String benchmark, double[] result)
+	{
+		System.out.println(String.format("%-14s %2dx%-2d %9d %7d %-18s %12.3f %12.3f %12.0f", name, size, size, numEpisodes, length, benchmark, result[0], result[1], result[2]));
+	}
+
+	// Samples episodes of a fixed length from a seeded random grid and writes them in the hidden format to a temporary file
+	private static File writeEpisodes(int size, int numEpisodes, int length) throws IOException
+	{
+		Grid model = new Grid(size, size);
+		model.makeGridRandom(new Random(SEED));
+
+		File file = File.createTempFile("benchmark", ".dat");
+		new EpisodeGenerator(model, SEED).write(file.getPath(), EpisodeGenerator.Format.HIDDEN, numEpisodes, length, length);
+		return file;
+	}
+
+	private static int[] parseList(String list)
+	{
+		String[] parts = list.split(",");
+		int[] values = new int[parts.length];
+		for(int i = 0; i < parts.length; i++)
+			values[i] = Integer.parseInt(parts[i].trim());
+
+		return values;
+	}
+}
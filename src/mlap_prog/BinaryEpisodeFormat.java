@@ -0,0 +1,201 @@
+package mlap_prog;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+
+/*
+ Compact binary layout for episode files, all values big endian:
+
+ int magic, int version, int numEpisodes, int flags
+ int numSymbols, int[numSymbols] rewards - the alphabet, in ascending order
+ long[numEpisodes + 1] offsets - index of the first step of each episode, the last entry is the total number of steps
+ byte[totalSteps] symbols - reward symbol ids, indexes into the alphabet
+ int[totalSteps] states - state ids, -1 for hidden moves, only present when FLAG_STATES is set
+ */
+public class BinaryEpisodeFormat {
+
+	public static final int MAGIC = 0x4D4C4150; // "MLAP"
+	public static final int VERSION = 2;
+	public static final int FLAG_STATES = 1;
+	public static final int HEADER_BYTES = 16;
+
+	// Symbol ids are written as bytes:
+	public static final int MAX_SYMBOLS = 128;
+
+	// Returns true if the file starts with the binary magic number
+	public static boolean isBinaryFile(String fileName) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+		try
+		{
+			return in.available() >= 4 && in.readInt() == MAGIC;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	// Reads the alphabet stored after the header, in must be positioned at the start of the file
+	public static Alphabet readAlphabet(DataInputStream in) throws IOException
+	{
+		if(in.readInt() != MAGIC)
+			throw new IOException("Not a binary episode file");
+		int version = in.readInt();
+		if(version != VERSION)
+			throw new IOException("Unsupported binary episode file version " + version);
+
+		in.readInt(); // numEpisodes
+		in.readInt(); // flags
+
+		int[] rewards = new int[in.readInt()];
+		for(int i = 0; i < rewards.length; i++)
+			rewards[i] = in.readInt();
+
+		return new Alphabet(rewards);
+	}
+
+	// Bytes taken by the header and alphabet, i.e. where the offsets start
+	public static long getOffsetsStart(int numSymbols)
+	{
+		return HEADER_BYTES + 4L*(numSymbols + 1);
+	}
+
+	// Converts a text file of (x,y) r or r lines into the binary layout
+	// The text file is read three times so only the episode lengths are held in memory
+	public static void convert(String textFile, String binaryFile, Cell[][] cells, Alphabet alphabet) throws IOException
+	{
+		// First pass: episode lengths and whether the cells are visible:
+		ArrayList<Integer> lengths = new ArrayList<Integer>();
+		boolean hasStates = false;
+		EpisodeReader reader = new EpisodeReader(new BufferedReader(new FileReader(textFile)), cells, alphabet);
+		try
+		{
+			Episode ep = reader.readEpisode();
+			while(ep != null)
+			{
+				lengths.add(ep.getLength());
+				for(Move move : ep.getMoves())
+				{
+					if(move.getCell() != null)
+						hasStates = true;
+				}
+				ep = reader.readEpisode();
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(binaryFile), 1 << 16));
+		try
+		{
+			int[] episodeLengths = new int[lengths.size()];
+			for(int i = 0; i < episodeLengths.length; i++)
+				episodeLengths[i] = lengths.get(i);
+			writeHeader(out, episodeLengths, hasStates, alphabet);
+
+			// Second pass: reward symbols
+			reader = new EpisodeReader(new BufferedReader(new FileReader(textFile)), cells, alphabet);
+			try
+			{
+				Episode ep = reader.readEpisode();
+				while(ep != null)
+				{
+					for(Move move : ep.getMoves())
+						out.writeByte(move.getSymbol());
+					ep = reader.readEpisode();
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+
+			// Third pass: state ids
+			if(hasStates)
+			{
+				reader = new EpisodeReader(new BufferedReader(new FileReader(textFile)), cells, alphabet);
+				try
+				{
+					Episode ep = reader.readEpisode();
+					while(ep != null)
+					{
+						for(Move move : ep.getMoves())
+							out.writeInt(move.getCell() == null ? -1 : move.getCell().getId());
+						ep = reader.readEpisode();
+					}
+				}
+				finally
+				{
+					reader.close();
+				}
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	// Writes the header, alphabet and offset index, the symbols and then the states must follow
+	public static void writeHeader(DataOutputStream out, int[] lengths, boolean hasStates, Alphabet alphabet) throws IOException
+	{
+		if(alphabet.size() > MAX_SYMBOLS)
+			throw new IllegalArgumentException("The binary format supports at most " + MAX_SYMBOLS + " rewards, got " + alphabet.size());
+
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(lengths.length);
+		out.writeInt(hasStates ? FLAG_STATES : 0);
+
+		out.writeInt(alphabet.size());
+		for(int reward : alphabet.getRewards())
+			out.writeInt(reward);
+
+		long offset = 0;
+		out.writeLong(offset);
+		for(int length : lengths)
+		{
+			offset += length;
+			out.writeLong(offset);
+		}
+	}
+
+	// Usage: BinaryEpisodeFormat textFile binaryFile [rows columns]
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length != 2 && args.length != 4)
+			throw new IllegalArgumentException("Please specify the arguments: textFile, binaryFile, [rows, columns]");
+
+		int rows = 4;
+		int columns = 4;
+		if(args.length == 4)
+		{
+			rows = Integer.parseInt(args[2]);
+			columns = Integer.parseInt(args[3]);
+		}
+
+		// Cells are only needed to look up state ids, so they get a throwaway parameter store with few transitions:
+		Alphabet alphabet = Alphabet.fromFile(args[0]);
+		Parameters params = new Parameters(TransitionStructure.adjacent(rows, columns, new ArrayList<Wall>()), alphabet);
+		Cell[][] cells = new Cell[rows][columns];
+		for(int i = 0; i < rows; i++)
+		{
+			for(int j = 0; j < columns; j++)
+				cells[i][j] = new Cell(i, j, i*columns + j, params);
+		}
+
+		long startTime = System.currentTimeMillis();
+		convert(args[0], args[1], cells, alphabet);
+		System.out.println("Converted " + args[0] + " to " + args[1] + " in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+}
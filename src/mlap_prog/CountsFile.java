@@ -0,0 +1,276 @@
+package mlap_prog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/*
+ Saves and loads the sufficient statistics of a shard of episodes, so separate processes can each count their own files
+ and the partial counts can be merged into one model. Merging is addition, so shards can be merged in any order or grouping.
+
+ Layout, all values big endian:
+
+ int magic, int version, int kind (VISIBLE or EXPECTED), int rows, int columns, int iteration
+ int numSymbols, int[numSymbols] rewards
+ the transition structure as written by TransitionStructure.write
+ then the counts as written by VisibleCounts.write or ExpectedCounts.write
+
+ Version 1 files have no transition structure and count every transition of a dense grid.
+
+ iteration is the number of EM iterations of the parameters expected counts were taken at, 0 for visible counts,
+ so shards from different iterations can't be merged by mistake.
+ Files are written to a temporary file and renamed, so a reader never sees half a shard.
+ */
+public class CountsFile {
+
+	public static final int MAGIC = 0x4D4C5043; // "MLPC"
+	public static final int VERSION = 2;
+
+	// Exact counts of visible episodes, or expected counts from an E-step:
+	public static final int VISIBLE = 0;
+	public static final int EXPECTED = 1;
+
+	// The fields before the counts:
+	public static class Header {
+
+		private int kind, rows, columns, iteration;
+		private Alphabet alphabet;
+		private TransitionStructure structure;
+
+		public int getKind()
+		{
+			return kind;
+		}
+
+		public int getRows()
+		{
+			return rows;
+		}
+
+		public int getColumns()
+		{
+			return columns;
+		}
+
+		public int getIteration()
+		{
+			return iteration;
+		}
+
+		public Alphabet getAlphabet()
+		{
+			return alphabet;
+		}
+
+		public TransitionStructure getTransitionStructure()
+		{
+			return structure;
+		}
+	}
+
+	public static void save(Grid grid, VisibleCounts counts, String fileName) throws IOException
+	{
+		DataOutputStream out = create(grid, VISIBLE, 0, fileName);
+		try
+		{
+			counts.write(out);
+		}
+		finally
+		{
+			out.close();
+		}
+		commit(fileName);
+	}
+
+	// The counts are taken at the grid's current parameters, which have been trained for grid.getCompletedIterations()
+	public static void save(Grid grid, ExpectedCounts counts, String fileName) throws IOException
+	{
+		DataOutputStream out = create(grid, EXPECTED, grid.getCompletedIterations(), fileName);
+		try
+		{
+			counts.write(out);
+		}
+		finally
+		{
+			out.close();
+		}
+		commit(fileName);
+	}
+
+	public static Header readHeader(String fileName) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName)));
+		try
+		{
+			return readHeader(in, fileName);
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	// Adds the visible counts in the file to counts, the file must match the grid's size, alphabet and transition structure
+	// Returns the file's header
+	public static Header addVisible(Grid grid, String fileName, VisibleCounts counts) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+		try
+		{
+			Header header = readHeader(in, fileName);
+			checkHeader(grid, header, VISIBLE, fileName);
+
+			VisibleCounts shard = new VisibleCounts(counts.getTransitionStructure(), counts.getNumSymbols());
+			shard.read(in);
+			counts.merge(shard);
+			return header;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	// Adds the expected counts in the file to counts, the file must match the grid's size, alphabet and transition structure
+	// Returns the file's header
+	public static Header addExpected(Grid grid, String fileName, ExpectedCounts counts) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+		try
+		{
+			Header header = readHeader(in, fileName);
+			checkHeader(grid, header, EXPECTED, fileName);
+
+			ExpectedCounts shard = new ExpectedCounts(counts.getTransitionStructure(), counts.getNumSymbols());
+			shard.read(in);
+			counts.merge(shard);
+			return header;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/*
+	 Merges every file into outFile, which can be one of the inputs. The files must hold the same kind of counts
+	 for the same grid and, for expected counts, the same EM iteration.
+	 Returns a grid of the files' size, alphabet and transition structure
+	 */
+	public static Grid merge(String outFile, String... files) throws IOException
+	{
+		if(files.length == 0)
+			throw new IllegalArgumentException("Nothing to merge into " + outFile);
+
+		Header first = readHeader(files[0]);
+		Grid grid = createGrid(first);
+		TransitionStructure structure = grid.getTransitionStructure();
+		int numSymbols = first.alphabet.size();
+
+		if(first.kind == VISIBLE)
+		{
+			VisibleCounts total = new VisibleCounts(structure, numSymbols);
+			for(String file : files)
+				addVisible(grid, file, total);
+
+			save(grid, total, outFile);
+		}
+		else
+		{
+			ExpectedCounts total = new ExpectedCounts(structure, numSymbols);
+			for(String file : files)
+			{
+				Header header = addExpected(grid, file, total);
+				if(header.iteration != first.iteration)
+					throw new IOException(file + " was counted at iteration " + header.iteration + ", " + files[0] + " at iteration " + first.iteration);
+			}
+
+			grid.completedIterations = first.iteration;
+			save(grid, total, outFile);
+		}
+		return grid;
+	}
+
+	// A grid the counts can be added to, with the size, alphabet and transition structure of the header, e.g. the sparse one of walls
+	public static Grid createGrid(Header header)
+	{
+		Grid grid = new Grid(header.rows, header.columns, header.alphabet);
+		if(!header.structure.isDense())
+			grid.setTransitionStructure(header.structure);
+		return grid;
+	}
+
+	private static DataOutputStream create(Grid grid, int kind, int iteration, String fileName) throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName + ".tmp"), 1 << 16));
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeInt(kind);
+		out.writeInt(grid.getRows());
+		out.writeInt(grid.getColumns());
+		out.writeInt(iteration);
+
+		int[] rewards = grid.getAlphabet().getRewards();
+		out.writeInt(rewards.length);
+		for(int reward : rewards)
+			out.writeInt(reward);
+
+		grid.getTransitionStructure().write(out);
+		return out;
+	}
+
+	private static void commit(String fileName) throws IOException
+	{
+		File temp = new File(fileName + ".tmp");
+		Files.move(temp.toPath(), new File(fileName).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Header readHeader(DataInputStream in, String fileName) throws IOException
+	{
+		if(in.readInt() != MAGIC)
+			throw new IOException(fileName + " is not a counts file");
+		int version = in.readInt();
+		if(version != 1 && version != VERSION)
+			throw new IOException(fileName + " has an unsupported version " + version);
+
+		Header header = new Header();
+		header.kind = in.readInt();
+		header.rows = in.readInt();
+		header.columns = in.readInt();
+		header.iteration = in.readInt();
+
+		int[] rewards = new int[in.readInt()];
+		for(int i = 0; i < rewards.length; i++)
+			rewards[i] = in.readInt();
+		header.alphabet = new Alphabet(rewards);
+
+		if(version == 1)
+			header.structure = TransitionStructure.dense(header.rows*header.columns);
+		else
+			header.structure = TransitionStructure.read(in);
+		return header;
+	}
+
+	private static void checkHeader(Grid grid, Header header, int kind, String fileName) throws IOException
+	{
+		if(header.kind != kind)
+			throw new IOException(fileName + " holds " + (header.kind == VISIBLE ? "visible" : "expected") + " counts");
+
+		if(header.rows != grid.getRows() || header.columns != grid.getColumns())
+			throw new IOException(fileName + " counts a " + header.rows + "x" + header.columns + " grid, the grid is " + grid.getRows() + "x" + grid.getColumns());
+
+		if(!Arrays.equals(header.alphabet.getRewards(), grid.getAlphabet().getRewards()))
+			throw new IOException(fileName + " counts the rewards " + Arrays.toString(header.alphabet.getRewards()) + ", the grid uses " + grid.getAlphabet().toHeader());
+
+		if(!header.structure.hasSameEdges(grid.getTransitionStructure()))
+			throw new IOException(fileName + " counts " + header.structure.getNumEdges() + " transitions, not those of the grid's transition structure");
+	}
+}
@@ -0,0 +1,375 @@
+package mlap_prog;
+
+import java.util.Arrays;
+
+/*
+ Forward/backward for a batch of episodes on a grid whose transition structure is dense, i.e. a plain Grid.
+ The edges of a dense structure are numbered from*numStates + to, so the transitions are read as a full matrix.
+
+ Grid.calcForward gathers each state's predecessors through the CSR arrays, which suits OptimisedGrid's few
+ neighbours but reads the dense transition matrix down its columns. Here both recursions are dot products of
+ contiguous rows:
+
+ forward:  alpha_t[to] = A^T[to] . alpha_t-1, with A transposed once per batch
+ backward: beta_t[from] = A[from] . (b(v_t+1) * beta_t+1)
+
+ The loops are bound by loads and stores rather than by cache misses, so the batch shares them: up to batchSize
+ episodes step through time together, and four at a time go through each row of A with a sum each held in registers.
+ Every value of A that's loaded is used four times, and nothing is stored until the row is done, where one episode
+ at a time needs a load of A for every multiply-add.
+
+ The expected transition counts A[from][to] * sum_t alpha_t[from] * b(v_t+1)[to] * beta_t+1[to] / P(v) are summed as
+ rank one updates of the forward and weighted backward vectors, a time step of the whole batch at a time, with each
+ entry of the sum loaded and stored once for four episodes. They're multiplied by A once at the end.
+ The loops are plain counted loops over arrays, the project targets Java 8 so the jdk.incubator.vector API isn't available.
+ There is no gather kernel for sparse structures: OptimisedGrid keeps the CSR loops of Grid, which only visit each
+ cell's few neighbours.
+
+ Each thread needs its own kernel, the batch and scratch buffers, including the numStates^2 transposed matrix,
+ are reused for every batch.
+ */
+public class DenseKernel {
+
+	private int numStates, numSymbols, batchSize;
+
+	// Episodes of the current batch and the lattices their probabilities are written to:
+	private Episode[] episodes;
+	private Lattice[] lattices;
+	private int count, maxLength;
+
+	// Emissions regrouped by symbol, [symbol*numStates + state], so the emission of every state is contiguous:
+	private double[] emissionBySymbol;
+
+	// A^T, [to*numStates + from], built by forward():
+	private double[] transposed;
+
+	// The lattice arrays of the episodes that take part in the current time step:
+	private double[][] vectors;
+
+	// b(v_t+1) * beta_t+1, and the scaled forward vectors for the transition counts, of every episode taking part, [j*numStates + state]:
+	private double[] weighted, scaledForward;
+
+	// Sum of the outer products of the scaled forward and weighted backward vectors, [from*numStates + to]:
+	private double[] outerProducts;
+
+	public DenseKernel(int numStates, int numSymbols, int batchSize)
+	{
+		if(batchSize < 1)
+			throw new IllegalArgumentException("The batch size must be at least 1, got " + batchSize);
+
+		this.numStates = numStates;
+		this.numSymbols = numSymbols;
+		this.batchSize = batchSize;
+		episodes = new Episode[batchSize];
+		lattices = new Lattice[batchSize];
+		emissionBySymbol = new double[numSymbols*numStates];
+		transposed = new double[numStates*numStates];
+		vectors = new double[batchSize][];
+		weighted = new double[batchSize*numStates];
+		scaledForward = new double[batchSize*numStates];
+		outerProducts = new double[numStates*numStates];
+	}
+
+	// Adds an episode to the batch, returns true once the batch is full
+	public boolean add(Episode ep, Lattice lattice)
+	{
+		episodes[count] = ep;
+		lattices[count] = lattice;
+		maxLength = Math.max(maxLength, ep.getLength());
+		count++;
+		return count == batchSize;
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	public Episode getEpisode(int e)
+	{
+		return episodes[e];
+	}
+
+	public Lattice getLattice(int e)
+	{
+		return lattices[e];
+	}
+
+	// Empties the batch, keeping the buffers
+	public void clear()
+	{
+		for(int e = 0; e < count; e++)
+		{
+			episodes[e] = null;
+			lattices[e] = null;
+		}
+		count = 0;
+		maxLength = 0;
+	}
+
+	// Fills the forward probabilities and scale factors of every lattice in the batch
+	public void forward(Parameters params, boolean scaled)
+	{
+		double[] initial = params.getInitialArray();
+		double[] transition = params.getTransitionArray();
+		double[] emission = params.getEmissionArray();
+
+		for(int s = 0; s < numStates; s++)
+		{
+			for(int symbol = 0; symbol < numSymbols; symbol++)
+				emissionBySymbol[symbol*numStates + s] = emission[s*numSymbols + symbol];
+		}
+
+		for(int from = 0; from < numStates; from++)
+		{
+			for(int to = 0; to < numStates; to++)
+				transposed[to*numStates + from] = transition[from*numStates + to];
+		}
+
+		for(int t = 0; t < maxLength; t++)
+		{
+			int offset = t*numStates;
+
+			if(t > 0)
+			{
+				int numActive = 0;
+				for(int e = 0; e < count; e++)
+				{
+					if(t < episodes[e].getLength())
+						vectors[numActive++] = lattices[e].getForwardArray();
+				}
+
+				// alpha_t[to] = A^T[to] . alpha_t-1 for every four episodes still running:
+				int numGrouped = numActive - numActive % 4;
+				multiplyGroups(transposed, vectors, offset - numStates, offset, numGrouped);
+
+				// The rest add one row of A at a time, which needs no transposing and beats a dot product on its own:
+				for(int j = numGrouped; j < numActive; j++)
+				{
+					double[] forward = vectors[j];
+					Arrays.fill(forward, offset, offset + numStates, 0.0);
+					for(int from = 0; from < numStates; from++)
+					{
+						double alpha = forward[offset - numStates + from];
+						if(alpha == 0.0)
+							continue;
+
+						int row = from*numStates;
+						for(int to = 0; to < numStates; to++)
+							forward[offset + to] += alpha * transition[row + to];
+					}
+				}
+			}
+
+			for(int e = 0; e < count; e++)
+			{
+				if(t >= episodes[e].getLength())
+					continue;
+
+				double[] forward = lattices[e].getForwardArray();
+				int symbolOffset = episodes[e].getMoves().get(t).getSymbol()*numStates;
+				if(t == 0)
+				{
+					for(int s = 0; s < numStates; s++)
+						forward[s] = initial[s] * emissionBySymbol[symbolOffset + s];
+				}
+				else
+				{
+					for(int s = 0; s < numStates; s++)
+						forward[offset + s] *= emissionBySymbol[symbolOffset + s];
+				}
+
+				if(scaled)
+					lattices[e].scaleForward(t);
+				else
+					lattices[e].getScaleArray()[t] = 1.0;
+			}
+		}
+	}
+
+	// Fills the backward probabilities of every lattice in the batch, needs the scale factors and emissions from forward()
+	public void backward(Parameters params)
+	{
+		double[] transition = params.getTransitionArray();
+
+		for(int t = maxLength - 1; t >= 0; t--)
+		{
+			int offset = t*numStates;
+			int nextOffset = offset + numStates;
+
+			int numActive = 0;
+			for(int e = 0; e < count; e++)
+			{
+				int length = episodes[e].getLength();
+				double[] backward = lattices[e].getBackwardArray();
+				if(t == length - 1)
+				{
+					Arrays.fill(backward, offset, offset + numStates, 1.0);
+				}
+				else if(t < length - 1)
+				{
+					int symbolOffset = episodes[e].getMoves().get(t + 1).getSymbol()*numStates;
+					int weightOffset = numActive*numStates;
+
+					// Backward probabilities share the scale factor of the next forward step, applied here once per state:
+					double scale = lattices[e].getScaleArray()[t + 1];
+					for(int s = 0; s < numStates; s++)
+						weighted[weightOffset + s] = emissionBySymbol[symbolOffset + s] * backward[nextOffset + s] / scale;
+					vectors[numActive++] = backward;
+				}
+			}
+
+			// beta_t[from] = A[from] . weighted for every episode with a next step:
+			multiply(transition, weighted, numActive, vectors, offset);
+		}
+	}
+
+	// Adds the expected transition counts of every episode in the batch, needs the lattices from forward() and backward()
+	public void accumulateTransitions(Parameters params, double[] transitionCounts)
+	{
+		double[] transition = params.getTransitionArray();
+
+		for(int t = 0; t < maxLength - 1; t++)
+		{
+			int offset = t*numStates;
+			int nextOffset = offset + numStates;
+
+			int numActive = 0;
+			for(int e = 0; e < count; e++)
+			{
+				if(t >= episodes[e].getLength() - 1)
+					continue;
+
+				double[] forward = lattices[e].getForwardArray();
+				double[] backward = lattices[e].getBackwardArray();
+
+				// Normaliser P(v1, ..., vT) and the scale factor carried by the next backward values:
+				double normaliser = dot(forward, offset, backward, offset, numStates);
+				double jointScale = 1.0/(normaliser * lattices[e].getScaleArray()[t + 1]);
+
+				int vectorOffset = numActive*numStates;
+				int symbolOffset = episodes[e].getMoves().get(t + 1).getSymbol()*numStates;
+				for(int s = 0; s < numStates; s++)
+				{
+					scaledForward[vectorOffset + s] = forward[offset + s] * jointScale;
+					weighted[vectorOffset + s] = emissionBySymbol[symbolOffset + s] * backward[nextOffset + s];
+				}
+				numActive++;
+			}
+
+			addOuterProducts(numActive);
+		}
+
+		for(int i = 0; i < outerProducts.length; i++)
+		{
+			transitionCounts[i] += transition[i] * outerProducts[i];
+			outerProducts[i] = 0.0;
+		}
+	}
+
+	// vectors[j][outOffset + row] = matrix[row] . vectors[j][inOffset ...] for the first numVectors vectors, a multiple of four
+	private void multiplyGroups(double[] matrix, double[][] vectors, int inOffset, int outOffset, int numVectors)
+	{
+		for(int j = 0; j < numVectors; j += 4)
+		{
+			double[] in0 = vectors[j], in1 = vectors[j + 1], in2 = vectors[j + 2], in3 = vectors[j + 3];
+			for(int row = 0; row < numStates; row++)
+			{
+				int rowOffset = row*numStates;
+				double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+				for(int i = 0; i < numStates; i++)
+				{
+					double a = matrix[rowOffset + i];
+					sum0 += a * in0[inOffset + i];
+					sum1 += a * in1[inOffset + i];
+					sum2 += a * in2[inOffset + i];
+					sum3 += a * in3[inOffset + i];
+				}
+				in0[outOffset + row] = sum0;
+				in1[outOffset + row] = sum1;
+				in2[outOffset + row] = sum2;
+				in3[outOffset + row] = sum3;
+			}
+		}
+	}
+
+	// out[j][outOffset + row] = matrix[row] . in[j*numStates ...] for the first numVectors vectors, four at a time
+	private void multiply(double[] matrix, double[] in, int numVectors, double[][] out, int outOffset)
+	{
+		int j = 0;
+		for(; j + 3 < numVectors; j += 4)
+		{
+			int in0 = j*numStates, in1 = in0 + numStates, in2 = in1 + numStates, in3 = in2 + numStates;
+			for(int row = 0; row < numStates; row++)
+			{
+				int rowOffset = row*numStates;
+				double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+				for(int i = 0; i < numStates; i++)
+				{
+					double a = matrix[rowOffset + i];
+					sum0 += a * in[in0 + i];
+					sum1 += a * in[in1 + i];
+					sum2 += a * in[in2 + i];
+					sum3 += a * in[in3 + i];
+				}
+				out[j][outOffset + row] = sum0;
+				out[j + 1][outOffset + row] = sum1;
+				out[j + 2][outOffset + row] = sum2;
+				out[j + 3][outOffset + row] = sum3;
+			}
+		}
+
+		for(; j < numVectors; j++)
+		{
+			for(int row = 0; row < numStates; row++)
+				out[j][outOffset + row] = dot(matrix, row*numStates, in, j*numStates, numStates);
+		}
+	}
+
+	// outerProducts += scaledForward^T . weighted over the first numVectors vectors, four at a time
+	private void addOuterProducts(int numVectors)
+	{
+		for(int from = 0; from < numStates; from++)
+		{
+			int row = from*numStates;
+			int j = 0;
+			for(; j + 3 < numVectors; j += 4)
+			{
+				int w0 = j*numStates, w1 = w0 + numStates, w2 = w1 + numStates, w3 = w2 + numStates;
+				double f0 = scaledForward[w0 + from], f1 = scaledForward[w1 + from];
+				double f2 = scaledForward[w2 + from], f3 = scaledForward[w3 + from];
+				for(int to = 0; to < numStates; to++)
+					outerProducts[row + to] += f0 * weighted[w0 + to] + f1 * weighted[w1 + to] + f2 * weighted[w2 + to] + f3 * weighted[w3 + to];
+			}
+
+			for(; j < numVectors; j++)
+			{
+				int w = j*numStates;
+				double f = scaledForward[w + from];
+				if(f == 0.0)
+					continue;
+
+				for(int to = 0; to < numStates; to++)
+					outerProducts[row + to] += f * weighted[w + to];
+			}
+		}
+	}
+
+	// Dot product of length values, with four partial sums so the additions don't wait on each other
+	private static double dot(double[] a, int aOffset, double[] b, int bOffset, int length)
+	{
+		double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+		int i = 0;
+		for(; i + 3 < length; i += 4)
+		{
+			sum0 += a[aOffset + i] * b[bOffset + i];
+			sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+		}
+		for(; i < length; i++)
+			sum0 += a[aOffset + i] * b[bOffset + i];
+
+		return (sum0 + sum1) + (sum2 + sum3);
+	}
+}
@@ -0,0 +1,207 @@
+package mlap_prog;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/*
+ The coordinator of distributed EM. The episodes are split into shards held by the workers, the coordinator only holds the parameters.
+ Every E-step sends the parameters to all of the workers, which count their shards at the same time, and adds their counts together.
+ The M-step, stopping rules, listeners, checkpoints and acceleration are those of Grid, so a run gives the same log likelihoods
+ as a single process over the concatenated episodes.
+ Only the dense transition structure of Grid is supported, the workers count every transition. The walls model of Grid is
+ dense, its transitions through walls are just 0 and stay 0, but the sparse structure of an OptimisedGrid is rejected.
+
+ Usage: DistributedGrid <host:port> <host:port> ... [--seed n] [--walls] [--load snapshot] [--save snapshot] [--max-iterations n] [--quiet] [--accelerate]
+ with an EMWorkerServer listening at every address. The grid size and alphabet are taken from the workers, which must agree.
+ --walls starts from random parameters with walls rather than without.
+ */
+public class DistributedGrid extends Grid {
+
+	private List<EMWorker> workers;
+
+	// Counts of one worker, added to the total:
+	private ExpectedCounts workerCounts;
+
+	public DistributedGrid(int rows, int columns, Alphabet alphabet, List<EMWorker> workers)
+	{
+		super(rows, columns, alphabet);
+
+		if(workers.isEmpty())
+			throw new IllegalArgumentException("Distributed EM needs at least one worker");
+
+		this.workers = workers;
+		workerCounts = new ExpectedCounts(structure, params.getNumSymbols());
+	}
+
+	public List<EMWorker> getWorkers()
+	{
+		return workers;
+	}
+
+	// The parameters sent to the workers must fit the dense counts of their shards
+	@Override
+	protected void setTransitionStructure(TransitionStructure structure)
+	{
+		if(!structure.isDense())
+			throw new IllegalArgumentException("Distributed EM only supports dense grids, got " + structure.getNumEdges() + " of "
+					+ structure.getNumStates()*structure.getNumStates() + " transitions");
+
+		super.setTransitionStructure(structure);
+	}
+
+	// The episodes are held by the workers
+	@Override
+	protected ParallelEStep createParallelEStep()
+	{
+		return null;
+	}
+
+	@Override
+	protected void expectationStep(ExpectedCounts counts, ParallelEStep parallelEStep)
+	{
+		counts.clear();
+		try
+		{
+			// Start every worker before waiting on any of them:
+			for(EMWorker worker : workers)
+				worker.sendParameters(params);
+
+			for(EMWorker worker : workers)
+			{
+				worker.receiveCounts(workerCounts);
+				counts.merge(workerCounts);
+			}
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException("A worker failed during the E-step", e);
+		}
+	}
+
+	// Closes every worker, even if some of them fail
+	public void closeWorkers() throws IOException
+	{
+		closeWorkers(workers);
+	}
+
+	private static void closeWorkers(List<EMWorker> workers) throws IOException
+	{
+		IOException failure = null;
+		for(EMWorker worker : workers)
+		{
+			try
+			{
+				worker.close();
+			}
+			catch(IOException e)
+			{
+				if(failure == null)
+					failure = e;
+				else
+					failure.addSuppressed(e);
+			}
+		}
+		if(failure != null)
+			throw failure;
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		ArrayList<String> addresses = new ArrayList<String>();
+		long seed = 0;
+		boolean seeded = false;
+		boolean walls = false;
+		String loadFile = null;
+		String saveFile = null;
+		int maxIterations = 0;
+		boolean quiet = false;
+		boolean accelerate = false;
+
+		for(int i = 0; i < args.length; i++)
+		{
+			if(args[i].equals("--seed") && i + 1 < args.length)
+			{
+				seed = Long.parseLong(args[++i]);
+				seeded = true;
+			}
+			else if(args[i].equals("--walls"))
+				walls = true;
+			else if(args[i].equals("--load") && i + 1 < args.length)
+				loadFile = args[++i];
+			else if(args[i].equals("--save") && i + 1 < args.length)
+				saveFile = args[++i];
+			else if(args[i].equals("--max-iterations") && i + 1 < args.length)
+				maxIterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--quiet"))
+				quiet = true;
+			else if(args[i].equals("--accelerate"))
+				accelerate = true;
+			else if(args[i].startsWith("--"))
+				throw new IllegalArgumentException("Unknown option " + args[i] + ", expected --seed n, --walls, --load file, --save file, --max-iterations n, --quiet or --accelerate");
+			else
+				addresses.add(args[i]);
+		}
+		if(addresses.isEmpty())
+			throw new IllegalArgumentException("Please specify the arguments: host:port of every worker, [--seed n], [--walls], [--load snapshot], [--save snapshot], [--max-iterations n], [--quiet], [--accelerate]");
+
+		ArrayList<EMWorker> workers = new ArrayList<EMWorker>();
+		Throwable failure = null;
+		try
+		{
+			SocketEMWorker first = null;
+			for(String address : addresses)
+			{
+				SocketEMWorker worker = SocketEMWorker.connect(address);
+				workers.add(worker);
+
+				if(first == null)
+					first = worker;
+				else if(worker.getRows() != first.getRows() || worker.getColumns() != first.getColumns() || !Arrays.equals(worker.getAlphabet().getRewards(), first.getAlphabet().getRewards()))
+					throw new IOException(address + " holds a " + worker.getRows() + "x" + worker.getColumns() + " shard with the rewards " + worker.getAlphabet().toHeader()
+							+ ", " + addresses.get(0) + " a " + first.getRows() + "x" + first.getColumns() + " shard with the rewards " + first.getAlphabet().toHeader());
+			}
+
+			DistributedGrid grid = new DistributedGrid(first.getRows(), first.getColumns(), first.getAlphabet(), workers);
+			Random r = seeded ? new Random(seed) : new Random();
+			if(walls)
+				grid.makeGridWalls(r);
+			else
+				grid.makeGridRandom(r);
+			if(loadFile != null)
+				grid.warmStart(loadFile);
+			grid.setPrintIterations(!quiet);
+			grid.setAccelerated(accelerate);
+			if(maxIterations > 0)
+				grid.setStoppingRules(StoppingRules.absoluteTolerance(0.01), StoppingRules.maxIterations(maxIterations));
+
+			System.out.println("Distributed EM over " + workers.size() + " workers");
+			grid.findHiddenParameters();
+
+			if(saveFile != null)
+				grid.saveParameters(saveFile);
+		}
+		catch(Throwable e)
+		{
+			failure = e;
+			throw e;
+		}
+		finally
+		{
+			// A worker that can't be closed mustn't hide why training failed:
+			try
+			{
+				closeWorkers(workers);
+			}
+			catch(IOException e)
+			{
+				if(failure == null)
+					throw e;
+				failure.addSuppressed(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,8 @@
+package mlap_prog;
+
+// Notified after every EM iteration of Grid.findHiddenParameters
+public interface EMListener {
+
+	// metrics is reused for the next iteration, copy any values that need to be kept
+	public void iterationCompleted(EMMetrics metrics);
+}
@@ -0,0 +1,119 @@
+package mlap_prog;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/*
+ Measurements of one EM iteration, passed to every EMListener.
+
+ The forward, backward and accumulation times are summed over every episode, so with a parallel E-step they are
+ CPU time across the workers and can add up to more than the E-step's wall clock time.
+ */
+public class EMMetrics {
+
+	private int iteration;
+	private double logLikelihood, delta;
+	private boolean converged;
+
+	private long eStepNanos, forwardNanos, backwardNanos, accumulateNanos, mStepNanos;
+
+	// Euclidean distance between the parameters before and after the M-step, 0 if there was no M-step:
+	private double parameterChange;
+
+	// Bytes allocated by the training thread during the iteration, -1 if the JVM can't tell:
+	private long allocatedBytes;
+
+	void set(int iteration, double logLikelihood, double delta, boolean converged, long eStepNanos, ExpectedCounts counts,
+			long mStepNanos, double parameterChange, long allocatedBytes)
+	{
+		this.iteration = iteration;
+		this.logLikelihood = logLikelihood;
+		this.delta = delta;
+		this.converged = converged;
+		this.eStepNanos = eStepNanos;
+		this.forwardNanos = counts.getForwardNanos();
+		this.backwardNanos = counts.getBackwardNanos();
+		this.accumulateNanos = counts.getAccumulateNanos();
+		this.mStepNanos = mStepNanos;
+		this.parameterChange = parameterChange;
+		this.allocatedBytes = allocatedBytes;
+	}
+
+	public int getIteration()
+	{
+		return iteration;
+	}
+
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+
+	// Change in log likelihood from the previous iteration
+	public double getDelta()
+	{
+		return delta;
+	}
+
+	// True for the last iteration of a run that converged, false while running and for runs that became undefined
+	public boolean isConverged()
+	{
+		return converged;
+	}
+
+	public long getEStepNanos()
+	{
+		return eStepNanos;
+	}
+
+	public long getForwardNanos()
+	{
+		return forwardNanos;
+	}
+
+	public long getBackwardNanos()
+	{
+		return backwardNanos;
+	}
+
+	public long getAccumulateNanos()
+	{
+		return accumulateNanos;
+	}
+
+	public long getMStepNanos()
+	{
+		return mStepNanos;
+	}
+
+	public double getParameterChange()
+	{
+		return parameterChange;
+	}
+
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+
+	// Bytes allocated so far by the calling thread, or -1 if the JVM can't tell
+	public static long getThreadAllocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean))
+			return -1;
+
+		com.sun.management.ThreadMXBean allocationBean = (com.sun.management.ThreadMXBean) bean;
+		if(!allocationBean.isThreadAllocatedMemorySupported() || !allocationBean.isThreadAllocatedMemoryEnabled())
+			return -1;
+
+		return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("iteration %d, log likelihood %f, diff %.3f, E-step %.3f ms (forward %.3f, backward %.3f, counts %.3f), M-step %.3f ms, parameter change %.6f, allocated %d bytes",
+				iteration, logLikelihood, delta, eStepNanos/1e6, forwardNanos/1e6, backwardNanos/1e6, accumulateNanos/1e6, mStepNanos/1e6, parameterChange, allocatedBytes);
+	}
+}
@@ -0,0 +1,27 @@
+package mlap_prog;
+
+// JMX view of the latest EM iteration, registered by JmxEMListener
+public interface EMMetricsMXBean {
+
+	public int getIteration();
+
+	public double getLogLikelihood();
+
+	public double getDelta();
+
+	public boolean isConverged();
+
+	public double getEStepMillis();
+
+	public double getForwardMillis();
+
+	public double getBackwardMillis();
+
+	public double getAccumulateMillis();
+
+	public double getMStepMillis();
+
+	public double getParameterChange();
+
+	public long getAllocatedBytes();
+}
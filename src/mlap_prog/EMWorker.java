@@ -0,0 +1,20 @@
+package mlap_prog;
+
+import java.io.IOException;
+
+/*
+ The coordinator's connection to one worker of distributed EM, which owns a shard of the episodes.
+ Every iteration the coordinator sends the current parameters to all of its workers first and then collects their counts,
+ so the workers run their E-steps at the same time.
+ */
+public interface EMWorker {
+
+	// Starts the E-step of the worker's shard at params, returns without waiting for it
+	public void sendParameters(Parameters params) throws IOException;
+
+	// Waits for the E-step started by sendParameters and replaces counts with the shard's expected counts
+	public void receiveCounts(ExpectedCounts counts) throws IOException;
+
+	// Tells the worker there are no more iterations
+	public void close() throws IOException;
+}
@@ -0,0 +1,126 @@
+package mlap_prog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/*
+ A worker process of distributed EM, serving the E-step of its shard to a coordinator over a socket.
+
+ Usage: EMWorkerServer <episodes> <port> [rows columns] [--bind address]
+ The shard is streamed from the file on every E-step so it doesn't have to fit in memory. The worker listens on the
+ loopback address unless --bind is given, serves one coordinator and exits once the coordinator closes it.
+
+ Protocol, all values big endian as written by DataOutputStream:
+
+ on connect the worker sends: int magic, int version, int rows, int columns, int numSymbols, int[numSymbols] rewards
+ then the coordinator repeatedly sends int PARAMETERS followed by Parameters.write,
+ and the worker replies with ExpectedCounts.write for its shard, until the coordinator sends int CLOSE
+ */
+public class EMWorkerServer {
+
+	public static final int MAGIC = 0x4D4C5057; // "MLPW"
+	public static final int VERSION = 1;
+
+	public static final int PARAMETERS = 1;
+	public static final int CLOSE = 2;
+
+	private Grid shard;
+	private ServerSocket serverSocket;
+
+	// port 0 picks a free port, see getPort()
+	public EMWorkerServer(Grid shard, int port, InetAddress address) throws IOException
+	{
+		this.shard = shard;
+		serverSocket = new ServerSocket(port, 1, address);
+	}
+
+	public int getPort()
+	{
+		return serverSocket.getLocalPort();
+	}
+
+	// Accepts one coordinator and runs E-steps for it until it closes the connection
+	// Returns the number of E-steps run
+	public int serve() throws IOException
+	{
+		Socket socket = serverSocket.accept();
+		try
+		{
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(shard.getRows());
+			out.writeInt(shard.getColumns());
+			int[] rewards = shard.getAlphabet().getRewards();
+			out.writeInt(rewards.length);
+			for(int reward : rewards)
+				out.writeInt(reward);
+			out.flush();
+
+			ExpectedCounts counts = new ExpectedCounts(shard.getTransitionStructure(), shard.params.getNumSymbols());
+			ParallelEStep parallelEStep = shard.createParallelEStep();
+			int numSteps = 0;
+			while(true)
+			{
+				int command = in.readInt();
+				if(command == CLOSE)
+					return numSteps;
+				if(command != PARAMETERS)
+					throw new IOException("Unknown command " + command + " from the coordinator");
+
+				shard.params.read(in);
+				shard.expectationStep(counts, parallelEStep);
+				counts.write(out);
+				out.flush();
+				numSteps++;
+			}
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+
+	public void close() throws IOException
+	{
+		serverSocket.close();
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		String address = null;
+		int numPositional = args.length;
+		if(args.length > 2 && args[args.length - 2].equals("--bind"))
+		{
+			address = args[args.length - 1];
+			numPositional -= 2;
+		}
+		if(numPositional != 2 && numPositional != 4)
+			throw new IllegalArgumentException("Please specify the arguments: episodes, port, [rows, columns], [--bind address]");
+
+		int rows = numPositional == 4 ? Integer.parseInt(args[2]) : 4;
+		int columns = numPositional == 4 ? Integer.parseInt(args[3]) : 4;
+		Grid shard = new Grid(rows, columns, args[0], true);
+
+		EMWorkerServer server = new EMWorkerServer(shard, Integer.parseInt(args[1]), address == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(address));
+		try
+		{
+			System.out.println("Serving " + args[0] + " on port " + server.getPort());
+			int numSteps = server.serve();
+			System.out.println("Ran " + numSteps + " E-steps");
+		}
+		finally
+		{
+			server.close();
+		}
+	}
+}
@@ -6,9 +6,12 @@ public class Episode {
 	
 	private ArrayList<Move> moves = new ArrayList<Move>();
 	
-	public void addMove(Cell cell, int reward)
+	// Forward/backward buffers, allocated once and overwritten on every EM iteration:
+	private Lattice lattice;
+	
+	public void addMove(Cell cell, int reward, int symbol)
 	{
-		moves.add(new Move(cell, reward));
+		moves.add(new Move(this, moves.size(), cell, reward, symbol));
 	}
 	
 	public ArrayList<Move> getMoves()
@@ -20,4 +23,18 @@ public class Episode {
 	{
 		return moves.size();
 	}
+	
+	// Returns the lattice for this episode, only allocating the first time or when the number of states changes:
+	public Lattice getLattice(int numStates)
+	{
+		if(lattice == null || lattice.getNumStates() != numStates || lattice.getLength() != moves.size())
+			lattice = new Lattice(moves.size(), numStates);
+		
+		return lattice;
+	}
+	
+	public Lattice getLattice()
+	{
+		return lattice;
+	}
 }
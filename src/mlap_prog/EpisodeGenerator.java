@@ -0,0 +1,276 @@
+package mlap_prog;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+// Samples episodes from the initial, transition and emission probabilities of a grid
+// Every write with the same seed samples the same episodes, whatever the format
+public class EpisodeGenerator {
+
+	public enum Format { VISIBLE, HIDDEN, BINARY }
+
+	private Cell[] states;
+	private Alphabet alphabet;
+	private int numStates, numSymbols;
+	private int[] successorStart, successors;
+
+	// Cumulative distributions, the transitions are aligned with the successor edges of the grid's structure:
+	private double[] initialCdf, transitionCdf, emissionCdf;
+
+	private long seed;
+
+	// Draws the lengths then every episode of a write, sampleEpisode carries on from the constructor's seed between writes:
+	private Random r;
+
+	public EpisodeGenerator(Grid grid, long seed)
+	{
+		Parameters params = grid.getParameters();
+		TransitionStructure structure = grid.getTransitionStructure();
+
+		states = grid.states;
+		alphabet = params.getAlphabet();
+		numStates = params.getNumStates();
+		numSymbols = params.getNumSymbols();
+		successorStart = structure.getSuccessorStart();
+		successors = structure.getSuccessors();
+
+		initialCdf = new double[numStates];
+		double total = 0.0;
+		for(int s = 0; s < numStates; s++)
+		{
+			total += params.getInitial(s);
+			initialCdf[s] = total;
+		}
+
+		transitionCdf = new double[successors.length];
+		double[] transition = params.getTransitionArray();
+		for(int from = 0; from < numStates; from++)
+		{
+			total = 0.0;
+			for(int k = successorStart[from]; k < successorStart[from + 1]; k++)
+			{
+				total += transition[k];
+				transitionCdf[k] = total;
+			}
+		}
+
+		emissionCdf = new double[numStates*numSymbols];
+		for(int s = 0; s < numStates; s++)
+		{
+			total = 0.0;
+			for(int symbol = 0; symbol < numSymbols; symbol++)
+			{
+				total += params.getEmission(s, symbol);
+				emissionCdf[s*numSymbols + symbol] = total;
+			}
+		}
+
+		this.seed = seed;
+		r = new Random(seed);
+	}
+
+	// Episode lengths are uniform between minLength and maxLength inclusive, the only distribution the generator has
+	public int[] sampleLengths(int numEpisodes, int minLength, int maxLength, Random lengthRandom)
+	{
+		int[] lengths = new int[numEpisodes];
+		for(int i = 0; i < numEpisodes; i++)
+			lengths[i] = minLength + lengthRandom.nextInt(maxLength - minLength + 1);
+
+		return lengths;
+	}
+
+	// Fills the first length entries of stateIds and symbols with one sampled episode
+	public void sampleEpisode(int length, int[] stateIds, int[] symbols)
+	{
+		int state = sample(initialCdf, 0, numStates);
+		for(int t = 0; t < length; t++)
+		{
+			if(t > 0)
+			{
+				int k = sample(transitionCdf, successorStart[state], successorStart[state + 1]);
+				state = successors[k];
+			}
+			stateIds[t] = state;
+			symbols[t] = sample(emissionCdf, state*numSymbols, (state + 1)*numSymbols) - state*numSymbols;
+		}
+	}
+
+	// Returns the index in [from, to) of the first cumulative value above a uniform sample
+	private int sample(double[] cdf, int from, int to)
+	{
+		if(from == to)
+			throw new IllegalStateException("Can't sample from a state with no transitions");
+
+		double u = r.nextDouble() * cdf[to - 1];
+		int low = from;
+		int high = to - 1;
+		while(low < high)
+		{
+			int mid = (low + high) >>> 1;
+			if(cdf[mid] > u)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		return low;
+	}
+
+	public void write(String fileName, Format format, int numEpisodes, int minLength, int maxLength) throws IOException
+	{
+		r = new Random(seed);
+		int[] lengths = sampleLengths(numEpisodes, minLength, maxLength, r);
+
+		if(format == Format.BINARY)
+			writeBinary(fileName, lengths);
+		else
+			writeText(fileName, lengths, format == Format.VISIBLE);
+	}
+
+	private void writeText(String fileName, int[] lengths, boolean visible) throws IOException
+	{
+		int[] stateIds = new int[maxLength(lengths)];
+		int[] symbols = new int[stateIds.length];
+		StringBuilder line = new StringBuilder();
+
+		BufferedWriter out = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+		try
+		{
+			// The header lets the file be read back without knowing the alphabet:
+			out.write(alphabet.toHeader());
+			out.write("\n\n");
+
+			for(int length : lengths)
+			{
+				sampleEpisode(length, stateIds, symbols);
+				for(int t = 0; t < length; t++)
+				{
+					line.setLength(0);
+					if(visible)
+					{
+						Cell cell = states[stateIds[t]];
+						line.append('(').append(cell.getX()).append(',').append(cell.getY()).append(") ");
+					}
+					line.append(alphabet.getReward(symbols[t])).append('\n');
+					out.append(line);
+				}
+				out.write('\n');
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	// The symbols section comes before the states, so the states are spooled to a temporary file and appended after them
+	private void writeBinary(String fileName, int[] lengths) throws IOException
+	{
+		int[] stateIds = new int[maxLength(lengths)];
+		int[] symbols = new int[stateIds.length];
+
+		File stateFile = new File(fileName + ".states.tmp");
+		try
+		{
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+			try
+			{
+				BinaryEpisodeFormat.writeHeader(out, lengths, true, alphabet);
+
+				DataOutputStream stateOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(stateFile), 1 << 16));
+				try
+				{
+					for(int length : lengths)
+					{
+						sampleEpisode(length, stateIds, symbols);
+						for(int t = 0; t < length; t++)
+						{
+							out.writeByte(symbols[t]);
+							stateOut.writeInt(stateIds[t]);
+						}
+					}
+				}
+				finally
+				{
+					stateOut.close();
+				}
+
+				Files.copy(stateFile.toPath(), out);
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		finally
+		{
+			stateFile.delete();
+		}
+	}
+
+	private static int maxLength(int[] lengths)
+	{
+		int max = 0;
+		for(int length : lengths)
+			max = Math.max(max, length);
+
+		return max;
+	}
+
+	// Usage: EpisodeGenerator rows columns model(uniform|random|walls) numEpisodes minLength maxLength seed format(visible|hidden|binary) outFile [rewards]
+	// Lengths are uniform between minLength and maxLength, rewards is comma separated, e.g. -2,-1,0,1,2, and defaults to -1,0,1
+	public static void main(String[] args) throws IOException
+	{
+		if(args.length != 9 && args.length != 10)
+			throw new IllegalArgumentException("Please specify the arguments: rows, columns, model (uniform|random|walls), numEpisodes, minLength, maxLength, seed, format (visible|hidden|binary), outFile, [rewards]");
+
+		int rows = Integer.parseInt(args[0]);
+		int columns = Integer.parseInt(args[1]);
+		String model = args[2];
+		int numEpisodes = Integer.parseInt(args[3]);
+		int minLength = Integer.parseInt(args[4]);
+		int maxLength = Integer.parseInt(args[5]);
+		long seed = Long.parseLong(args[6]);
+		Format format = Format.valueOf(args[7].toUpperCase());
+		
+		Alphabet alphabet = Alphabet.DEFAULT;
+		if(args.length == 10)
+		{
+			String[] parts = args[9].split(",");
+			int[] rewards = new int[parts.length];
+			for(int i = 0; i < parts.length; i++)
+				rewards[i] = Integer.parseInt(parts[i].trim());
+			alphabet = new Alphabet(rewards);
+		}
+
+		// The parameters are seeded too so the whole data set can be reproduced:
+		Grid grid;
+		if(model.equals("uniform"))
+		{
+			grid = new Grid(rows, columns, alphabet);
+			grid.makeGridUniform();
+		}
+		else if(model.equals("random"))
+		{
+			grid = new Grid(rows, columns, alphabet);
+			grid.makeGridRandom(new Random(seed));
+		}
+		else if(model.equals("walls"))
+		{
+			grid = new OptimisedGrid(rows, columns, alphabet);
+			grid.makeGridWalls(new Random(seed));
+		}
+		else
+			throw new IllegalArgumentException("Unknown model " + model + ", expected uniform, random or walls");
+
+		long startTime = System.currentTimeMillis();
+		new EpisodeGenerator(grid, seed).write(args[8], format, numEpisodes, minLength, maxLength);
+		System.out.println("Wrote " + numEpisodes + " episodes to " + args[8] + " in " + (System.currentTimeMillis() - startTime) + " ms");
+	}
+}
@@ -0,0 +1,131 @@
+package mlap_prog;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class EpisodeReader {
+
+	// Regex used to parse string into groups within the brackets (1, 2) 3
+	private static final Pattern visiblePattern = Pattern.compile("\\((\\d+),\\s*(\\d+)\\) (-?\\d+)");
+	private static final Pattern hiddenPattern = Pattern.compile("-?\\d+");
+
+	private BufferedReader br;
+	private Cell[][] cells;
+	private Alphabet alphabet;
+
+	// The number of the last line read, for error messages:
+	private int lineNumber;
+
+	// cells are used to look up the cell of each move in the visible format
+	// Every reward must be in the alphabet, it's mapped to its symbol id as the move is read
+	public EpisodeReader(BufferedReader br, Cell[][] cells, Alphabet alphabet)
+	{
+		this.br = br;
+		this.cells = cells;
+		this.alphabet = alphabet;
+	}
+
+	// Returns the next episode in the file or null once every episode has been read
+	public Episode readEpisode() throws IOException
+	{
+		Matcher m = null;
+
+		// Create new episode to add the moves to
+		Episode ep = new Episode();
+
+		// read line by line until the end of the episode or document
+		String line = readLine();
+		while (line != null)
+		{
+			if(line.isEmpty()) // Empty line = end of episode
+			{
+				if(ep.getLength() > 0)
+					return ep;
+			}
+			else if(line.startsWith("#"))
+			{
+				// Comments and the "# rewards" header are skipped
+			}
+			else
+			{
+				//Finds matches for the regex of the current line
+				m = visiblePattern.matcher(line);
+				if(m.matches())
+				{
+					// Extracts the substrings from () groups
+					int x = parseInt(m.group(1), line);
+					int y = parseInt(m.group(2), line);
+					int r = parseInt(m.group(3), line);
+
+					if(x >= cells.length || y >= cells[x].length)
+						throw new IOException("Line " + lineNumber + ": cell (" + x + "," + y + ") is outside the " + cells.length + "x" + cells[0].length + " grid: " + line);
+
+					Cell cell = cells[x][y];
+
+					// Adds move to current episode
+					ep.addMove(cell, r, getSymbol(r, line));
+				}
+				else
+				{
+					// Check for the hidden pattern of just the reward:
+					m = hiddenPattern.matcher(line);
+					if(m.matches())
+					{
+						// Add the move with a NULL cell:
+						// group(0) is the entire string
+						int r = parseInt(m.group(0), line);
+						ep.addMove(null, r, getSymbol(r, line));
+					}
+					else
+					{
+						throw new IOException("Line " + lineNumber + ": file data is not in the correct format (x, y) r OR r: " + line);
+					}
+				}
+			}
+			line = readLine();
+		}
+
+		// The last episode doesn't need a blank line after it:
+		if(ep.getLength() > 0)
+			return ep;
+
+		return null;
+	}
+
+	private String readLine() throws IOException
+	{
+		String line = br.readLine();
+		if(line != null)
+			lineNumber++;
+
+		return line;
+	}
+
+	// The patterns only match digits, but they can still be too big for an int
+	private int parseInt(String value, String line) throws IOException
+	{
+		try
+		{
+			return Integer.parseInt(value);
+		}
+		catch(NumberFormatException e)
+		{
+			throw new IOException("Line " + lineNumber + ": " + value + " is too big for an int: " + line, e);
+		}
+	}
+
+	private int getSymbol(int reward, String line) throws IOException
+	{
+		if(!alphabet.contains(reward))
+			throw new IOException("Line " + lineNumber + ": reward " + reward + " is not in the alphabet " + alphabet.toHeader() + ": " + line);
+
+		return alphabet.getSymbol(reward);
+	}
+
+	public void close() throws IOException
+	{
+		br.close();
+	}
+}
@@ -0,0 +1,7 @@
+package mlap_prog;
+
+// A sequence of episodes that can be scanned more than once
+// Every call to iterator() starts again from the first episode
+public interface EpisodeSource extends Iterable<Episode> {
+
+}
@@ -0,0 +1,308 @@
+package mlap_prog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ExpectedCounts {
+
+	private int numStates, numSymbols, numEpisodes;
+
+	// The transitions that are counted, one per edge:
+	private TransitionStructure structure;
+
+	// Sum of log P(v1, ..., vT) over the episodes that have been added:
+	private double logLikelihood;
+
+	// Time spent on each phase of the E-step for these episodes:
+	private long forwardNanos, backwardNanos, accumulateNanos;
+
+	// Expected counts summed over every episode, indexed the same way as Parameters:
+	private double[] initial; // sum of P(h1 = state)
+	private double[] transition; // sum of P(ht = from, ht+1 = to) for t = 1 to T-1, [edge]
+	private double[] emission; // sum of P(ht = state) where vt = symbol
+	private double[] stateTotal; // sum of P(ht = state) for t = 1 to T
+	private double[] transitionTotal; // sum of P(ht = state) for t = 1 to T-1
+
+	public ExpectedCounts(TransitionStructure structure, int numSymbols)
+	{
+		this.numStates = structure.getNumStates();
+		this.numSymbols = numSymbols;
+		this.structure = structure;
+		initial = new double[numStates];
+		transition = new double[structure.getNumEdges()];
+		emission = new double[numStates*numSymbols];
+		stateTotal = new double[numStates];
+		transitionTotal = new double[numStates];
+	}
+
+	public int getNumStates()
+	{
+		return numStates;
+	}
+
+	public int getNumSymbols()
+	{
+		return numSymbols;
+	}
+
+	public TransitionStructure getTransitionStructure()
+	{
+		return structure;
+	}
+
+	public int getNumEpisodes()
+	{
+		return numEpisodes;
+	}
+
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+
+	public void addEpisode(double logProb)
+	{
+		numEpisodes++;
+		logLikelihood += logProb;
+	}
+
+	public void addTimings(long forward, long backward, long accumulate)
+	{
+		forwardNanos += forward;
+		backwardNanos += backward;
+		accumulateNanos += accumulate;
+	}
+
+	public long getForwardNanos()
+	{
+		return forwardNanos;
+	}
+
+	public long getBackwardNanos()
+	{
+		return backwardNanos;
+	}
+
+	public long getAccumulateNanos()
+	{
+		return accumulateNanos;
+	}
+
+	public double[] getInitialArray()
+	{
+		return initial;
+	}
+
+	public double[] getTransitionArray()
+	{
+		return transition;
+	}
+
+	public double[] getEmissionArray()
+	{
+		return emission;
+	}
+
+	public double[] getStateTotalArray()
+	{
+		return stateTotal;
+	}
+
+	public double[] getTransitionTotalArray()
+	{
+		return transitionTotal;
+	}
+
+	public void clear()
+	{
+		numEpisodes = 0;
+		logLikelihood = 0.0;
+		forwardNanos = 0;
+		backwardNanos = 0;
+		accumulateNanos = 0;
+		Arrays.fill(initial, 0.0);
+		Arrays.fill(transition, 0.0);
+		Arrays.fill(emission, 0.0);
+		Arrays.fill(stateTotal, 0.0);
+		Arrays.fill(transitionTotal, 0.0);
+	}
+
+	// Adds the counts held in other to these counts
+	public void merge(ExpectedCounts other)
+	{
+		if(other.numStates != numStates || other.numSymbols != numSymbols)
+			throw new IllegalArgumentException("Can't merge counts of " + other.numStates + " states and " + other.numSymbols + " symbols into " + numStates + " and " + numSymbols);
+		if(!structure.hasSameEdges(other.structure))
+			throw new IllegalArgumentException("Can't merge counts of a different transition structure");
+
+		numEpisodes += other.numEpisodes;
+		logLikelihood += other.logLikelihood;
+		addTimings(other.forwardNanos, other.backwardNanos, other.accumulateNanos);
+		add(initial, other.initial);
+		add(transition, other.transition);
+		add(emission, other.emission);
+		add(stateTotal, other.stateTotal);
+		add(transitionTotal, other.transitionTotal);
+	}
+
+	// Writes the episode count, log likelihood and counts, the timings are left out
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(numEpisodes);
+		out.writeDouble(logLikelihood);
+		writeDoubles(out, initial);
+		writeDoubles(out, transition);
+		writeDoubles(out, emission);
+		writeDoubles(out, stateTotal);
+		writeDoubles(out, transitionTotal);
+	}
+
+	// Replaces these counts with ones written by write(), which must have the same number of states, edges and symbols
+	public void read(DataInputStream in) throws IOException
+	{
+		clear();
+		numEpisodes = in.readInt();
+		logLikelihood = in.readDouble();
+		readDoubles(in, initial);
+		readDoubles(in, transition);
+		readDoubles(in, emission);
+		readDoubles(in, stateTotal);
+		readDoubles(in, transitionTotal);
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException
+	{
+		for(double value : values)
+			out.writeDouble(value);
+	}
+
+	private static void readDoubles(DataInputStream in, double[] values) throws IOException
+	{
+		for(int i = 0; i < values.length; i++)
+			values[i] = in.readDouble();
+	}
+
+	// Average number of moves per episode, the state totals add up to 1 for every move
+	public double getAverageLength()
+	{
+		double total = 0.0;
+		for(int s = 0; s < numStates; s++)
+			total += stateTotal[s];
+
+		return total/numEpisodes;
+	}
+
+	/*
+	 Sets the counts to those expected of one episode of the given length under the parameters, used as the starting point for online EM.
+	 P(ht = state) is carried forward through the transitions one time step at a time, so the totals are the expected time spent
+	 in each state and maximise() gives back the same parameters for every state the episode can reach. A state it can't reach
+	 gets no counts, as it would from an E-step. A fractional length gives the last time step that fraction of the weight.
+	 */
+	public void setFromParameters(Parameters params, double length)
+	{
+		if(!(length >= 1.0))
+			throw new IllegalArgumentException("An episode has at least one move, got a length of " + length);
+
+		checkStructure(params);
+		clear();
+		numEpisodes = 1;
+
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
+		double[] paramsTransition = params.getTransitionArray();
+		double[] marginal = new double[numStates];
+		double[] next = new double[numStates];
+		for(int s = 0; s < numStates; s++)
+		{
+			initial[s] = params.getInitial(s);
+			marginal[s] = initial[s];
+		}
+
+		for(int t = 0; t < length; t++)
+		{
+			// The transition totals stop a time step before the state totals:
+			double stateWeight = Math.min(1.0, length - t);
+			double transitionWeight = Math.max(0.0, Math.min(1.0, length - t - 1));
+
+			Arrays.fill(next, 0.0);
+			for(int s = 0; s < numStates; s++)
+			{
+				stateTotal[s] += stateWeight*marginal[s];
+				transitionTotal[s] += transitionWeight*marginal[s];
+				for(int k = successorStart[s]; k < successorStart[s + 1]; k++)
+					next[successors[k]] += marginal[s]*paramsTransition[k];
+			}
+
+			double[] swap = marginal;
+			marginal = next;
+			next = swap;
+		}
+
+		for(int s = 0; s < numStates; s++)
+		{
+			for(int symbol = 0; symbol < numSymbols; symbol++)
+				emission[s*numSymbols + symbol] = stateTotal[s]*params.getEmission(s, symbol);
+
+			for(int k = successorStart[s]; k < successorStart[s + 1]; k++)
+				transition[k] = transitionTotal[s]*paramsTransition[k];
+		}
+	}
+
+	/*
+	 Stepwise EM update: counts = (1 - eta)*counts + eta*(batch counts per episode)
+	 These counts then describe one average episode, so numEpisodes stays 1 and maximise() gives the blended parameters.
+	 The log likelihood is replaced by the batch's log likelihood per episode.
+	 */
+	public void blend(ExpectedCounts batch, double eta)
+	{
+		double weight = eta/batch.numEpisodes;
+		numEpisodes = 1;
+		logLikelihood = batch.logLikelihood/batch.numEpisodes;
+		blend(initial, batch.initial, eta, weight);
+		blend(transition, batch.transition, eta, weight);
+		blend(emission, batch.emission, eta, weight);
+		blend(stateTotal, batch.stateTotal, eta, weight);
+		blend(transitionTotal, batch.transitionTotal, eta, weight);
+	}
+
+	private static void blend(double[] total, double[] values, double eta, double weight)
+	{
+		for(int i = 0; i < total.length; i++)
+			total[i] = (1.0 - eta)*total[i] + weight*values[i];
+	}
+
+	private static void add(double[] total, double[] values)
+	{
+		for(int i = 0; i < total.length; i++)
+			total[i] += values[i];
+	}
+
+	// M-step: normalises the expected counts into new parameters
+	// A state without posterior mass, e.g. one the walls cut off, gets rows of zeros rather than 0/0, as in VisibleCounts
+	public void maximise(Parameters out)
+	{
+		checkStructure(out);
+		int[] successorStart = structure.getSuccessorStart();
+		double[] outTransition = out.getTransitionArray();
+		for(int s = 0; s < numStates; s++)
+		{
+			out.setInitial(s, numEpisodes > 0 ? initial[s]/numEpisodes : 0.0);
+
+			double total = stateTotal[s];
+			for(int symbol = 0; symbol < numSymbols; symbol++)
+				out.setEmission(s, symbol, total > 0.0 ? emission[s*numSymbols + symbol]/total : 0.0);
+
+			total = transitionTotal[s];
+			for(int k = successorStart[s]; k < successorStart[s + 1]; k++)
+				outTransition[k] = total > 0.0 ? transition[k]/total : 0.0;
+		}
+	}
+
+	private void checkStructure(Parameters params)
+	{
+		if(params.getNumStates() != numStates || params.getNumSymbols() != numSymbols || !structure.hasSameEdges(params.getTransitionStructure()))
+			throw new IllegalArgumentException("The parameters have a different size or transition structure from the counts");
+	}
+}
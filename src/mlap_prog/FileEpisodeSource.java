@@ -0,0 +1,88 @@
+package mlap_prog;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Reads episodes lazily from the data file, so only one episode is held in memory at a time
+public class FileEpisodeSource implements EpisodeSource {
+
+	private String fileName;
+	private Cell[][] cells;
+	private Alphabet alphabet;
+
+	public FileEpisodeSource(String fileName, Cell[][] cells, Alphabet alphabet)
+	{
+		this.fileName = fileName;
+		this.cells = cells;
+		this.alphabet = alphabet;
+	}
+
+	// The file is opened again for every scan and closed once the last episode is read
+	public Iterator<Episode> iterator()
+	{
+		try
+		{
+			return new EpisodeIterator(new EpisodeReader(new BufferedReader(new FileReader(fileName)), cells, alphabet));
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private static class EpisodeIterator implements Iterator<Episode> {
+
+		private EpisodeReader reader;
+		private Episode next;
+
+		EpisodeIterator(EpisodeReader reader) throws IOException
+		{
+			this.reader = reader;
+			advance();
+		}
+
+		private void advance() throws IOException
+		{
+			try
+			{
+				next = reader.readEpisode();
+			}
+			catch(IOException e)
+			{
+				reader.close();
+				throw e;
+			}
+			
+			if(next == null)
+				reader.close();
+		}
+
+		@Override
+		public boolean hasNext()
+		{
+			return next != null;
+		}
+
+		@Override
+		public Episode next()
+		{
+			if(next == null)
+				throw new NoSuchElementException();
+
+			Episode ep = next;
+			try
+			{
+				advance();
+			}
+			catch(IOException e)
+			{
+				throw new UncheckedIOException(e);
+			}
+			return ep;
+		}
+	}
+}
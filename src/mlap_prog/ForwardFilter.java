@@ -0,0 +1,185 @@
+package mlap_prog;
+
+/*
+ Tracks where an agent probably is now from its rewards so far, one reward at a time, for live streams rather than whole episodes.
+
+ Each Session holds the normalised forward probabilities P(h_t = state | v_1, ..., v_t) of one agent and updates them with the
+ forward recursion of calcForward. An update only loops over the predecessor edges of the grid's transition structure and
+ allocates nothing, so a filter of an OptimisedGrid costs O(edges) per reward.
+ The parameters are copied from the grid when the filter is built, so training can carry on while sessions are filtered;
+ build a new filter to pick up the new parameters. The filter is read only after that and can be shared by any number of
+ threads, but each session must only be updated by one thread at a time.
+ */
+public class ForwardFilter {
+
+	private Alphabet alphabet;
+	private int numStates, numSymbols;
+
+	private int[] predecessorStart, predecessors;
+
+	// The transitions are aligned with the predecessor edges and the emissions are indexed [symbol*numStates + state],
+	// so an update reads both in order:
+	private double[] initial, transition, emission;
+
+	// The belief of one agent, made by newSession()
+	public static class Session {
+
+		private ForwardFilter filter;
+
+		// Normalised forward probabilities, and the buffer the next update is written to:
+		private double[] belief, next;
+		private int length;
+		private double logProb;
+
+		Session(ForwardFilter filter)
+		{
+			this.filter = filter;
+			belief = new double[filter.numStates];
+			next = new double[filter.numStates];
+		}
+
+		/*
+		 Adds the reward observed at the next time step
+		 Returns log P(v_t | v_1, ..., v_t-1), or -Infinity if the reward is impossible given the rewards so far,
+		 in which case the belief is left as it was
+		 */
+		public double observe(int reward)
+		{
+			return observeSymbol(filter.alphabet.getSymbol(reward));
+		}
+
+		public double observeSymbol(int symbol)
+		{
+			ForwardFilter f = filter;
+			int numStates = f.numStates;
+			int[] predecessorStart = f.predecessorStart;
+			int[] predecessors = f.predecessors;
+			double[] transition = f.transition;
+			double[] emission = f.emission;
+			int emissionOffset = symbol*numStates;
+
+			double total = 0.0;
+			for(int s = 0; s < numStates; s++)
+			{
+				double forwardProb;
+				if(length == 0)
+				{
+					forwardProb = f.initial[s];
+				}
+				else
+				{
+					forwardProb = 0.0;
+					for(int k = predecessorStart[s]; k < predecessorStart[s + 1]; k++)
+						forwardProb += belief[predecessors[k]] * transition[k];
+				}
+				forwardProb *= emission[emissionOffset + s];
+				next[s] = forwardProb;
+				total += forwardProb;
+			}
+
+			if(total == 0.0)
+			{
+				logProb = Double.NEGATIVE_INFINITY;
+				return Double.NEGATIVE_INFINITY;
+			}
+
+			// Normalise and swap in the new belief, the sum is the probability of the reward given the previous ones:
+			for(int s = 0; s < numStates; s++)
+				next[s] /= total;
+
+			double[] swap = belief;
+			belief = next;
+			next = swap;
+			length++;
+
+			double logStep = Math.log(total);
+			logProb += logStep;
+			return logStep;
+		}
+
+		// P(h_t = state | v_1, ..., v_t) after the latest reward, undefined before the first one
+		public double getProb(int state)
+		{
+			return belief[state];
+		}
+
+		// Copies the belief into probs, which needs an entry for every state
+		public void getBelief(double[] probs)
+		{
+			System.arraycopy(belief, 0, probs, 0, belief.length);
+		}
+
+		// The state id of the most likely cell, the lowest one if there is a tie
+		public int getMostLikelyState()
+		{
+			int best = 0;
+			for(int s = 1; s < belief.length; s++)
+			{
+				if(belief[s] > belief[best])
+					best = s;
+			}
+			return best;
+		}
+
+		// Rewards observed since the session started or was reset:
+		public int getLength()
+		{
+			return length;
+		}
+
+		// log P(v_1, ..., v_t) of every reward observed, -Infinity once one of them was impossible:
+		public double getLogProb()
+		{
+			return logProb;
+		}
+
+		// Starts a new episode, keeping the buffers
+		public void reset()
+		{
+			length = 0;
+			logProb = 0.0;
+		}
+	}
+
+	public ForwardFilter(Grid grid)
+	{
+		Parameters params = grid.getParameters();
+		TransitionStructure structure = grid.getTransitionStructure();
+
+		alphabet = params.getAlphabet();
+		numStates = params.getNumStates();
+		numSymbols = params.getNumSymbols();
+		predecessorStart = structure.getPredecessorStart();
+		predecessors = structure.getPredecessors();
+
+		initial = new double[numStates];
+		emission = new double[numSymbols*numStates];
+		for(int s = 0; s < numStates; s++)
+		{
+			initial[s] = params.getInitial(s);
+			for(int symbol = 0; symbol < numSymbols; symbol++)
+				emission[symbol*numStates + s] = params.getEmission(s, symbol);
+		}
+
+		transition = new double[predecessors.length];
+		int[] predecessorEdges = structure.getPredecessorEdges();
+		double[] edgeTransition = params.getTransitionArray();
+		for(int k = 0; k < predecessors.length; k++)
+			transition[k] = edgeTransition[predecessorEdges[k]];
+	}
+
+	public Session newSession()
+	{
+		return new Session(this);
+	}
+
+	public int getNumStates()
+	{
+		return numStates;
+	}
+
+	public Alphabet getAlphabet()
+	{
+		return alphabet;
+	}
+}
@@ -3,45 +3,178 @@ package mlap_prog;
 import java.io.BufferedReader;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.Random;
 
 public class Grid {
 	
-	// Grid size and cell instances:
-	protected static int rows = 0;
-	protected static int columns = 0;
-	protected static Cell[][] cells;
+	// Grid size and cell instances, owned by this model so several can train at once:
+	protected int rows = 0;
+	protected int columns = 0;
+	protected Cell[][] cells;
+	
+	// Cells indexed by state id (row*columns + col):
+	protected Cell[] states;
+	
+	// Parameter store read by every cell, plus a second store the M-step writes into:
+	protected Parameters params;
+	protected Parameters newParams;
 	
 	// Episodes of moves that traverse the grid:
 	protected ArrayList<Episode> episodes;
 	
+	// When streaming, episodes is null and the episodes are read again from the file on every pass:
+	protected EpisodeSource episodeSource;
+	
+	// Lattice reused by every streamed episode, grown to fit the longest one:
+	private Lattice workspace;
+	
+	// Normalise the forward/backward probabilities at every time step so long episodes don't underflow:
+	protected boolean scaled = true;
+	
+	// Pool used to run the E-step across episodes in parallel, null runs it on the calling thread:
+	protected ForkJoinPool pool;
+	
+	// Where progress and parameters are printed:
+	protected PrintStream out = System.out;
+	
+	// Walls between cells, and the transitions the E-step loops over, built once from the walls:
+	protected ArrayList<Wall> walls = new ArrayList<Wall>();
+	protected TransitionStructure structure;
+	
+	// EM iterations the current parameters have been trained for, carried over when warm starting from a snapshot:
+	protected int completedIterations = 0;
+	
+	// Snapshot written every checkpointInterval EM iterations, null for no checkpoints:
+	protected String checkpointFile;
+	protected int checkpointInterval;
+	
+	// Print a line for every EM iteration, the parameters and total time are always printed:
+	protected boolean printIterations = true;
+	
+	// Notified with the metrics of every EM iteration:
+	protected ArrayList<EMListener> listeners = new ArrayList<EMListener>();
+	
+	// EM stops as soon as any rule is met, null keeps the original |delta| < 0.01 rule:
+	protected ArrayList<StoppingRule> stoppingRules;
+	
+	// Extrapolate the parameters with SQUAREM to cut the number of E-steps:
+	protected boolean accelerated = false;
+	
+	// findHiddenParameters runs one pass of online EM over batches of this many episodes, 0 runs batch EM:
+	protected int onlineBatchSize = 0;
+	protected double onlineDecay;
+	
+	// E-steps run by the last call to findHiddenParameters, including rejected extrapolations:
+	protected int lastRunIterations = 0;
+	
+	// SQUAREM jumps the last call to findHiddenParameters accepted, 0 without acceleration:
+	protected int lastRunAcceptedJumps = 0;
+	
+	// Episodes per batch of the DenseKernel E-step, 0 keeps the CSR loops of calcForward and calcBackward:
+	protected int kernelBatchSize = 0;
+	
+	// Kernel used by the serial E-step, built on first use:
+	private DenseKernel kernel;
+	
 	public Grid(int rows, int columns, String episodeFile)
 	{
-		Grid.rows = rows;
-		Grid.columns = columns;
+		this(rows, columns, episodeFile, false);
+	}
+	
+	// episodeFile can be text or BinaryEpisodeFormat
+	// streamEpisodes reads the episodes lazily on every pass so memory depends on the longest episode, not the file
+	public Grid(int rows, int columns, String episodeFile, boolean streamEpisodes)
+	{
+		this(rows, columns, episodeFile, streamEpisodes, null);
+	}
+	
+	// A null alphabet is read from the file's header, or Alphabet.DEFAULT if it doesn't have one
+	public Grid(int rows, int columns, String episodeFile, boolean streamEpisodes, Alphabet alphabet)
+	{
+		this(rows, columns, alphabet != null ? alphabet : readAlphabet(episodeFile));
+		
+		try
+		{
+			if(BinaryEpisodeFormat.isBinaryFile(episodeFile))
+			{
+				// Binary files are memory mapped rather than parsed:
+				MappedEpisodeSource mapped = new MappedEpisodeSource(episodeFile, states, getAlphabet());
+				if(streamEpisodes)
+				{
+					episodes = null;
+					episodeSource = mapped;
+				}
+				else
+				{
+					episodes = new ArrayList<Episode>(mapped.getNumEpisodes());
+					for(Episode ep : mapped)
+						episodes.add(ep);
+				}
+			}
+			else if(streamEpisodes)
+			{
+				episodes = null;
+				episodeSource = new FileEpisodeSource(episodeFile, cells, getAlphabet());
+			}
+			else
+			{
+				// Get a list of episodes from the data file:
+				episodes = getEpisodesFromFile(episodeFile);
+			}
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	// A grid with no episodes, e.g. for generating data from its parameters
+	public Grid(int rows, int columns)
+	{
+		this(rows, columns, Alphabet.DEFAULT);
+	}
+	
+	public Grid(int rows, int columns, Alphabet alphabet)
+	{
+		if(rows <= 0 || columns <= 0)
+			throw new IllegalArgumentException("The grid needs at least one row and column, got " + rows + "x" + columns);
+		
+		this.rows = rows;
+		this.columns = columns;
+		
+		structure = buildTransitionStructure();
+		params = new Parameters(structure, alphabet);
+		newParams = new Parameters(structure, alphabet);
 		
 		//Define Grid as an 2D array of cells:
 		cells = new Cell[rows][columns];
+		states = new Cell[rows*columns];
 		for(int i = 0; i < rows; i++)
 		{
 			for(int j = 0; j < columns; j++)
 			{
-				cells[i][j] = new Cell(i, j);
+				int id = i*columns + j;
+				cells[i][j] = new Cell(i, j, id, params);
+				states[id] = cells[i][j];
 			}
 		}
-		
+		episodes = new ArrayList<Episode>();
+	}
+	
+	private static Alphabet readAlphabet(String episodeFile)
+	{
 		try
 		{
-			// Get a list of episodes from the data file:
-			episodes = getEpisodesFromFile(episodeFile);
+			return Alphabet.fromFile(episodeFile);
 		}
 		catch (IOException e)
 		{
 			e.printStackTrace();
+			return Alphabet.DEFAULT;
 		}
 	}
 	
@@ -50,10 +183,189 @@ public class Grid {
 		return cells[x][y];
 	}
 	
+	public int getRows()
+	{
+		return rows;
+	}
+	
+	public int getColumns()
+	{
+		return columns;
+	}
+	
+	public Alphabet getAlphabet()
+	{
+		return params.getAlphabet();
+	}
+	
+	// The episodes held in memory, or the streaming source:
+	public Iterable<Episode> getEpisodes()
+	{
+		if(episodes != null)
+			return episodes;
+		
+		return episodeSource;
+	}
+	
+	public Parameters getParameters()
+	{
+		return params;
+	}
+	
+	public TransitionStructure getTransitionStructure()
+	{
+		return structure;
+	}
+	
+	public ArrayList<Wall> getWalls()
+	{
+		return walls;
+	}
+	
+	// Every cell can transition to every other cell
+	protected TransitionStructure buildTransitionStructure()
+	{
+		return TransitionStructure.dense(rows*columns);
+	}
+	
+	// Replaces the structure, the transitions of both parameter stores start at 0
+	protected void setTransitionStructure(TransitionStructure structure)
+	{
+		this.structure = structure;
+		params.setTransitionStructure(structure);
+		newParams.setTransitionStructure(structure);
+		kernel = null;
+	}
+	
+	public void setScaled(boolean scaled)
+	{
+		this.scaled = scaled;
+	}
+	
+	public boolean isScaled()
+	{
+		return scaled;
+	}
+	
+	public void setForkJoinPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+	
+	public void setOutput(PrintStream out)
+	{
+		this.out = out;
+	}
+	
+	public void setPrintIterations(boolean printIterations)
+	{
+		this.printIterations = printIterations;
+	}
+	
+	public void addListener(EMListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	public void removeListener(EMListener listener)
+	{
+		listeners.remove(listener);
+	}
+	
+	public void setAccelerated(boolean accelerated)
+	{
+		this.accelerated = accelerated;
+	}
+	
+	// Makes findHiddenParameters a single pass of online EM, see OnlineEM, a batch size of 0 goes back to batch EM
+	public void setOnline(int batchSize, double decay)
+	{
+		if(batchSize < 0)
+			throw new IllegalArgumentException("The batch size can't be negative, got " + batchSize);
+		
+		onlineBatchSize = batchSize;
+		onlineDecay = decay;
+	}
+	
+	public int getLastRunIterations()
+	{
+		return lastRunIterations;
+	}
+	
+	public int getLastRunAcceptedJumps()
+	{
+		return lastRunAcceptedJumps;
+	}
+	
+	// Runs the E-step of episodes held in memory through DenseKernel in batches of batchSize, 0 turns it off
+	// Only used while every transition is allowed, a grid with walls keeps gathering over its neighbours
+	public void setKernelBatchSize(int batchSize)
+	{
+		if(batchSize < 0)
+			throw new IllegalArgumentException("The batch size can't be negative, got " + batchSize);
+		
+		kernelBatchSize = batchSize;
+		kernel = null;
+	}
+	
+	public int getKernelBatchSize()
+	{
+		return kernelBatchSize;
+	}
+	
+	// Returns a new kernel for one thread of the E-step, or null if the CSR loops should be used
+	protected DenseKernel createKernel()
+	{
+		if(kernelBatchSize > 0 && episodes != null && structure.isDense())
+			return new DenseKernel(states.length, params.getNumSymbols(), kernelBatchSize);
+		
+		return null;
+	}
+	
+	// Replaces the stopping rules, the rule that ends a run is printed
+	public void setStoppingRules(StoppingRule... rules)
+	{
+		if(rules.length == 0)
+			throw new IllegalArgumentException("EM needs at least one stopping rule");
+		
+		stoppingRules = new ArrayList<StoppingRule>();
+		for(StoppingRule rule : rules)
+			stoppingRules.add(rule);
+	}
+	
+	// Saves the parameters every interval EM iterations, and once EM has converged
+	public void setCheckpoint(String fileName, int interval)
+	{
+		if(interval < 1)
+			throw new IllegalArgumentException("The checkpoint interval must be at least 1, got " + interval);
+		
+		checkpointFile = fileName;
+		checkpointInterval = interval;
+	}
+	
+	public int getCompletedIterations()
+	{
+		return completedIterations;
+	}
+	
+	// Replaces the parameters with a snapshot, EM then carries on from the snapshot's iteration
+	public void warmStart(String snapshotFile) throws IOException
+	{
+		completedIterations = ModelSnapshot.load(this, snapshotFile);
+	}
+	
+	public void saveParameters(String snapshotFile) throws IOException
+	{
+		ModelSnapshot.save(this, completedIterations, snapshotFile);
+	}
+	
 	public void makeGridUniform()
 	{
-		double emission = 1.0/3.0;
+		Alphabet alphabet = getAlphabet();
+		double emission = 1.0/alphabet.size();
 		double val = 1.0/(rows*columns);
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
 		
 		for(int i = 0; i < rows; i++)
 		{
@@ -63,25 +375,29 @@ public class Grid {
 				cells[i][j].setInitialProb(val);
 				
 				// Uniform emission:
-				cells[i][j].setEmissionProb(-1, emission);
-				cells[i][j].setEmissionProb(0, emission);
-				cells[i][j].setEmissionProb(1, emission);
+				for(int symbol = 0; symbol < alphabet.size(); symbol++)
+					cells[i][j].setEmissionProb(alphabet.getReward(symbol), emission);
 				
-				// Uniform transition:
-				for(int k = 0; k < rows; k++)
-				{
-					for(int l = 0; l < columns; l++)
-					{
-						cells[i][j].setTransitionProb(cells[k][l], val);
-					}
-				}
+				// Uniform transition over the cells this one can move to:
+				int id = cells[i][j].getId();
+				double transition = 1.0/structure.getSuccessorCount(id);
+				for(int k = successorStart[id]; k < successorStart[id + 1]; k++)
+					cells[i][j].setTransitionProb(states[successors[k]], transition);
 			}
 		}
 	}
 	
 	public void makeGridRandom()
+	{
+		makeGridRandom(new Random());
+	}
+	
+	// Seeding r makes the random parameters reproducible
+	// Weights are drawn from 1 to 100, a 0 would be kept by EM for good and could leave a cell no transitions at all
+	public void makeGridRandom(Random r)
 	{		
-		Random r = new Random();
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
 	
 		// Create random initial values:
 		int initialTotal = 0;
@@ -89,7 +405,7 @@ public class Grid {
 		int initialIndex = 0;
 		for(int i = 0; i < rows*columns; i++)
 		{
-			initialDist[i] = r.nextInt(100);
+			initialDist[i] = 1 + r.nextInt(100);
 			initialTotal += initialDist[i];
 		}
 				
@@ -102,58 +418,53 @@ public class Grid {
 				initialIndex++;
 				
 				// Random emission:
-				int e1 = r.nextInt(100);
-				int e2 = r.nextInt(100);
-				int e3 = r.nextInt(100);
-				int eTotal = e1 + e2 + e3;
-				
-				// Set emission values:
-				cells[i][j].setEmissionProb(-1, (double) e1/eTotal);
-				cells[i][j].setEmissionProb(0, (double) e2/eTotal);
-				cells[i][j].setEmissionProb(1, (double) e3/eTotal);
+				setRandomEmission(cells[i][j], r);
 				
-				// Generate random transition values:
-				int transitionIndex = 0;
+				// Generate random transition values for the cells this one can move to, every cell on a dense grid:
+				int id = cells[i][j].getId();
 				int transTotal = 0;
-				int[] transDist = new int[rows*columns];
-				for(int k = 0; k < rows*columns; k++)
+				int[] transDist = new int[structure.getSuccessorCount(id)];
+				for(int k = 0; k < transDist.length; k++)
 				{
-					transDist[k] = r.nextInt(100);
+					transDist[k] = 1 + r.nextInt(100);
 					transTotal += transDist[k];
 				}
 				
 				// Set transition values:
-				for(int k = 0; k < rows; k++)
-				{
-					for(int l = 0; l < columns; l++)
-					{
-						cells[i][j].setTransitionProb(cells[k][l], (double) transDist[transitionIndex]/transTotal);
-						transitionIndex++;
-					}
-				}
+				for(int k = successorStart[id]; k < successorStart[id + 1]; k++)
+					cells[i][j].setTransitionProb(states[successors[k]], (double) transDist[k - successorStart[id]]/transTotal);
 			}
 		}
 	}
 	
 	public void makeGridWalls()
 	{
-		// Define the walls in the grid and save to a list:
-		ArrayList<Wall> walls = new ArrayList<Wall>();
-		walls.add(new Wall(cells[0][2], cells[1][2]));
-		walls.add(new Wall(cells[0][1], cells[1][1]));
-		walls.add(new Wall(cells[1][3], cells[2][3]));
-		walls.add(new Wall(cells[1][2], cells[2][2]));
-		walls.add(new Wall(cells[1][0], cells[2][0]));
-		walls.add(new Wall(cells[3][2], cells[3][1]));
+		makeGridWalls(new Random());
+	}
+	
+	public void makeGridWalls(Random r)
+	{
+		// Define the walls in the grid and save to a list, walls that fall outside a smaller grid are left out:
+		walls.clear();
+		addWall(0, 2, 1, 2);
+		addWall(0, 1, 1, 1);
+		addWall(1, 3, 2, 3);
+		addWall(1, 2, 2, 2);
+		addWall(1, 0, 2, 0);
+		addWall(3, 2, 3, 1);
+		
+		// Rebuild the transitions now the walls are known:
+		setTransitionStructure(buildTransitionStructure());
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
 		
-		Random r = new Random();
 		// Create random initial values:
 		int initialTotal = 0;
 		int[] initialDist = new int[rows*columns];
 		int initialIndex = 0;
 		for (int i = 0; i < rows*columns; i++)
 		{
-			initialDist[i] = r.nextInt(100);
+			initialDist[i] = 1 + r.nextInt(100);
 			initialTotal += initialDist[i];
 		}
 		
@@ -168,14 +479,7 @@ public class Grid {
 				initialIndex++;
 				
 				// Random emission:
-				int e1 = r.nextInt(100);
-				int e2 = r.nextInt(100);
-				int e3 = r.nextInt(100);
-				int eTotal = e1 + e2 + e3;
-				
-				currentCell.setEmissionProb(-1, (double) e1/eTotal);
-				currentCell.setEmissionProb(0, (double) e2/eTotal);
-				currentCell.setEmissionProb(1, (double) e3/eTotal);
+				setRandomEmission(currentCell, r);
 				
 				// Get list of adjacent cells to the current cell;
 				ArrayList<Cell> adj = getAdjacentCells(currentCell);
@@ -193,34 +497,54 @@ public class Grid {
 				int transTotal = 0;
 				for(int k = 0; k < validTransitions.size(); k++)
 				{
-					transDist[k] = r.nextInt(100);
+					transDist[k] = 1 + r.nextInt(100);
 					transTotal += transDist[k];
 				}
 				
-				// Set transition probabilities:
+				// Set transition probabilities, the successors are in the same order as the cells:
 				int transIndex = 0;
-				for(int k = 0; k < rows; k++)
+				int id = currentCell.getId();
+				for(int k = successorStart[id]; k < successorStart[id + 1]; k++)
 				{
-					for(int l = 0; l < columns; l++)
+					Cell transCell = states[successors[k]];
+					if(validTransitions.contains(transCell))
+					{
+						// Take a value from the transDist array:
+						currentCell.setTransitionProb(transCell, (double) transDist[transIndex]/transTotal);
+						transIndex++;
+					}
+					else
 					{
-						Cell transCell = cells[k][l];
-						if(validTransitions.contains(transCell))
-						{
-							// Take a value from the transDist array:
-							currentCell.setTransitionProb(transCell, (double) transDist[transIndex]/transTotal);
-							transIndex++;
-						}
-						else
-						{
-							// If the cell is not adjacent, given a 0 probability
-							currentCell.setTransitionProb(transCell, 0.0);
-						}
+						// If the cell is not adjacent, given a 0 probability
+						currentCell.setTransitionProb(transCell, 0.0);
 					}
 				}
 			}
 		}
 	}
 	
+	private void addWall(int x1, int y1, int x2, int y2)
+	{
+		if(Math.max(x1, x2) < rows && Math.max(y1, y2) < columns)
+			walls.add(new Wall(cells[x1][y1], cells[x2][y2]));
+	}
+	
+	// One random weight per reward in the alphabet, normalised to sum to 1
+	private void setRandomEmission(Cell cell, Random r)
+	{
+		Alphabet alphabet = getAlphabet();
+		int[] eDist = new int[alphabet.size()];
+		int eTotal = 0;
+		for(int symbol = 0; symbol < eDist.length; symbol++)
+		{
+			eDist[symbol] = 1 + r.nextInt(100);
+			eTotal += eDist[symbol];
+		}
+		
+		for(int symbol = 0; symbol < eDist.length; symbol++)
+			cell.setEmissionProb(alphabet.getReward(symbol), (double) eDist[symbol]/eTotal);
+	}
+	
 	public ArrayList<Cell> getAdjacentCells(Cell cell)
 	{
 		int max_x = rows - 1;
@@ -245,424 +569,612 @@ public class Grid {
 	// Finds the transition, initial and emission probabilities for each cell
 	public void findVisibleParameters()
 	{
-		// Generate initial and transition counts for every position in the grid:
-		for(Episode ep : episodes)
+		// Initial, transition and emission frequencies, normalised once every episode has been counted:
+		VisibleCounts counts = countVisible();
+		counts.maximise(params);
+		
+		printParameters();
+	}
+	
+	// Runs one E-step over every episode at the current parameters, across the pool if there is one
+	public ExpectedCounts countExpected()
+	{
+		ExpectedCounts counts = new ExpectedCounts(structure, params.getNumSymbols());
+		expectationStep(counts, createParallelEStep());
+		return counts;
+	}
+	
+	// Counts every episode, across the pool if there is one
+	public VisibleCounts countVisible()
+	{
+		VisibleCounts counts = new VisibleCounts(structure, params.getNumSymbols());
+		if(pool != null)
 		{
-			ArrayList<Move> moves = ep.getMoves();
-								
-			// loop through transitions and count the frequencies in each Cell:
-			for(int i = 0; i < moves.size() - 1; i++)
-			{
-				Move currentMove = moves.get(i);
-				Move nextMove = moves.get(i + 1);
-						
-				Cell currentCell = currentMove.getCell();
-							
-				// First cell in episode
-				if(i == 0)
-					currentCell.addInitialCount();
-					
-				// Add outgoing transition and reward:
-				currentCell.addTransitionCount(nextMove.getCell());
-				currentCell.addEmissionCount(currentMove.getReward());
-				currentCell.updateProbFromCount(episodes.size());
-			}
-					
-			// Add emission for final cell in Episode:
-			Move finalMove = moves.get(moves.size() - 1);
-			Cell finalCell = finalMove.getCell();
-			finalCell.addEmissionCount(finalMove.getReward());
-			finalCell.updateProbFromCount(episodes.size());
+			new ParallelVisibleCount(pool, structure, params.getNumSymbols()).run(getEpisodes(), counts);
 		}
-		printParameters();
+		else if(episodeSource instanceof MappedEpisodeSource)
+		{
+			MappedEpisodeSource source = (MappedEpisodeSource) episodeSource;
+			counts.addEpisodes(source, 0, source.getNumEpisodes());
+		}
+		else
+		{
+			for(Episode ep : getEpisodes())
+				counts.addEpisode(ep);
+		}
+		return counts;
 	}
 	
 	// The EM Algorithm
-	public void findHiddenParameters()
+	// Returns the final log likelihood, or NaN if the parameters became undefined
+	// In online mode returns the log likelihood per episode of the last batch instead
+	public double findHiddenParameters()
 	{
-		int iteration = 0; // Counts the number of EM iterations
+		if(onlineBatchSize > 0)
+			return findHiddenParametersOnline(onlineBatchSize, onlineDecay);
+		
+		int iteration = completedIterations; // Counts the number of EM iterations, carried on from a warm start
 		double prevLikelihood = 0.0; // Stores the previous log likelihood so we can terminate the algorithm
 		
+		// Expected counts are reused for every iteration:
+		ExpectedCounts counts = new ExpectedCounts(structure, params.getNumSymbols());
+		ParallelEStep parallelEStep = createParallelEStep();
+		EMMetrics metrics = new EMMetrics();
+		
+		ArrayList<StoppingRule> rules = stoppingRules;
+		if(rules == null)
+		{
+			rules = new ArrayList<StoppingRule>();
+			rules.add(StoppingRules.absoluteTolerance(0.01));
+		}
+		for(int i = 0; i < rules.size(); i++)
+			rules.get(i).reset();
+		
+		// Distance moved by the parameters in the last M-step, unknown until there has been one:
+		double parameterChange = Double.POSITIVE_INFINITY;
+		int firstIteration = iteration;
+		
+		SquaremAccelerator accelerator = null;
+		if(accelerated)
+			accelerator = new SquaremAccelerator(params, newParams, structure);
+		
 		// Measure time to convergence:
 		long startTime = System.currentTimeMillis();
 		
 		while(true)
 		{
 			iteration++;
+			lastRunIterations = iteration - firstIteration;
+			lastRunAcceptedJumps = accelerator == null ? 0 : accelerator.getAccepted();
+			long allocatedStart = listeners.isEmpty() ? -1 : EMMetrics.getThreadAllocatedBytes();
+			
+			long eStepStart = System.nanoTime();
+			expectationStep(counts, parallelEStep);
+			long eStepNanos = System.nanoTime() - eStepStart;
 			
-			// Calculate forward and backward probabilities:
-			calcForwardBack();	
+			// Log likelihood is summed while accumulating the counts:
+			double currentLikelihood = counts.getLogLikelihood();
 			
-			// Calculate log likelihood:
-			double currentLikelihood = getLogLikelihood();
-			System.out.println(String.format("EM iteration %d, Log likelihood = %f, (Diff: %.3f)", iteration, currentLikelihood,  currentLikelihood - prevLikelihood));
+			// An extrapolation that made the likelihood worse is undone before it's reported:
+			if(accelerator != null && !accelerator.afterEStep(currentLikelihood))
+			{
+				if(printIterations)
+					out.println(String.format("EM iteration %d, Extrapolation rejected (Log likelihood = %f)", iteration, currentLikelihood));
+				continue;
+			}
+			
+			double delta = currentLikelihood - prevLikelihood;
+			if(printIterations)
+				out.println(String.format("EM iteration %d, Log likelihood = %f, (Diff: %.3f)", iteration, currentLikelihood, delta));
 			
 			// Compare the old likelihood with the new value or check if undefined:
 			if(Double.isNaN(currentLikelihood))
 			{
-				System.out.println("\n**The parameters generated for this run iteration have become undefined so the run has been terminated. Run the task again for new randomly generated starting parameters**\n");
-				return;
+				notifyListeners(metrics, iteration, currentLikelihood, delta, false, eStepNanos, counts, 0, 0.0, allocatedStart);
+				out.println("\n**The parameters generated for this run iteration have become undefined so the run has been terminated. Run the task again for new randomly generated starting parameters**\n");
+				return currentLikelihood;
+			}
+			
+			// With acceleration the tolerance is checked on the gain of a whole SQUAREM cycle:
+			double convergenceDelta = accelerator == null ? delta : accelerator.getConvergenceDelta();
+			StoppingRule stoppedBy = null;
+			for(int i = 0; i < rules.size() && stoppedBy == null; i++)
+			{
+				if(rules.get(i).shouldStop(iteration - firstIteration, currentLikelihood, convergenceDelta, parameterChange, System.currentTimeMillis() - startTime))
+					stoppedBy = rules.get(i);
 			}
-			else if(Math.abs(currentLikelihood - prevLikelihood) < 0.01)
+			
+			if(stoppedBy != null)
 			{
+				notifyListeners(metrics, iteration, currentLikelihood, delta, true, eStepNanos, counts, 0, 0.0, allocatedStart);
+				
+				if(checkpointFile != null)
+					checkpoint();
+				
+				if(stoppingRules != null)
+					out.println("\nStopped after " + iteration + " iterations: " + stoppedBy.getDescription());
+				
 				printParameters();
 				
 				long endTime = System.currentTimeMillis();
-				System.out.println("Took "+ (endTime - startTime) + " ms");
+				out.println("Took "+ (endTime - startTime) + " ms");
 				
-				return;
+				return currentLikelihood;
 			}
 			prevLikelihood = currentLikelihood;
 			
+			long mStepStart = System.nanoTime();
+			maximisationStep(counts);
+			if(accelerator != null)
+				accelerator.afterMStep();
+			long mStepNanos = System.nanoTime() - mStepStart;
+			completedIterations = iteration;
 			
-			for(int i = 0; i < rows; i++)
-			{
-				for(int j = 0; j < columns; j++)
-				{	
-					Cell currentCell = cells[i][j];
-					
-					double initialProbSum = 0.0; // P(h1 = currentCell) for t=1
-					double marginalProbSum_T = 0.0; // prob P(ht = currentCell) for t = 1 to T
-					double marginalProbSum_T_minus_1 = 0.0; // prob P(ht = currentCell) for t = 1 to T-1
-					
-					HashMap<Cell, Double> jointProbSum = new HashMap<Cell, Double>(); //Joint prob P(ht+1 = nextCell, ht = currentCell)
-					HashMap<Integer, Double> emissionProbSum = new HashMap<Integer, Double>(); //Joint prob P(Vt = reward, ht = currentCell)
-
-					for(Episode ep : episodes)
-					{
-						ArrayList<Move> moves = ep.getMoves();
-						
-						Move firstMove = moves.get(0);
-						initialProbSum += firstMove.getMarginalCellProb(currentCell);
-					
-						// Sum cell probability over all moves
-						for(Move move : moves)
-						{
-							// Marginal probability for that cell at current move:
-							double cellProb = move.getMarginalCellProb(currentCell);
-							marginalProbSum_T += cellProb; // total over every move
-							
-							// All moves except the last
-							// Allows us to calculate the transition probability as the joint prob only goes to t-1
-							if(moves.indexOf(move) < moves.size() - 1)
-								marginalProbSum_T_minus_1 += cellProb;
-							
-							// Emission probability sum:
-							int rewardType = move.getReward();
-							double emissionTotal = 0.0;
-							if(emissionProbSum.containsKey(rewardType))
-								emissionTotal = emissionProbSum.get(rewardType);
-							
-							emissionProbSum.put(rewardType, emissionTotal + cellProb);
-						}
-						
-						// Calculate joint probabilities for each cell P(Ht+1 = nextCell, Ht = currentCell)
-						for(int l = 0; l < rows; l++)
-						{
-							for(int k = 0; k < columns; k++)
-							{
-								Cell nextCell = cells[l][k];
-								
-								double jointTotal = 0.0;
-								if(jointProbSum.containsKey(nextCell))
-									jointTotal = jointProbSum.get(nextCell);
-								
-								for(int observation = 0; observation < moves.size() - 1; observation++)
-								{
-									Move move = moves.get(observation);
-									Move nextMove = moves.get(observation + 1);
-									jointTotal += calcJointProb(move, nextMove, currentCell, nextCell);
-								}
-								jointProbSum.put(nextCell, jointTotal);
-								
-							} // joint cell inner loop
-						} // joint cell outer loop			
-					} // Episode loop
-									
-					// Save the new parameters back to temporary variables within cell
-					// Uses temporary variables to prevent the new values effect the next cell iteration
-					
-					// New initial prob:
-					double newInitial = (double) initialProbSum/episodes.size();
-					currentCell.setTempInitialProb(newInitial);
-					
-					// New emission prob:
-					for(int em : emissionProbSum.keySet())
-					{
-						double newEmission = emissionProbSum.get(em)/marginalProbSum_T;
-						currentCell.setTempEmissionProb(em, newEmission);
-					}
-					
-					// New transition prob:
-					for(Cell c : jointProbSum.keySet())
-					{
-						double newTrans = jointProbSum.get(c)/marginalProbSum_T_minus_1;
-						currentCell.setTempTransitionProb(c, newTrans);
-					}
-					
-				} // Cell inner loop
-			} // Cell outer loop
+			// After the swap newParams holds the parameters from before the M-step:
+			parameterChange = params.distance(newParams);
 			
-			// Overwrite the parameter probabilities with values stored in temporary variables
-			for(int i = 0; i < rows; i++)
-			{
-				for(int j = 0; j < columns; j++)
-				{
-					Cell c = cells[i][j];
-					c.copyTempToActual();
-				}
-			}
+			if(checkpointFile != null && iteration % checkpointInterval == 0)
+				checkpoint();
+			
+			notifyListeners(metrics, iteration, currentLikelihood, delta, false, eStepNanos, counts, mStepNanos, parameterChange, allocatedStart);
 			
 		} // While loop - repeat the process again until convergence	
 	}
 	
-	// likelihood P(v1, v2,..., vt | params)...
-	protected double getLogLikelihood()
+	// Online EM: a single pass over the episodes, updating the parameters after every batchSize episodes
+	// Returns the log likelihood per episode of the last batch
+	public double findHiddenParametersOnline(int batchSize, double decay)
+	{
+		OnlineEM online = new OnlineEM(this, batchSize, decay);
+		
+		long startTime = System.currentTimeMillis();
+		
+		for(Episode ep : getEpisodes())
+		{
+			if(online.addEpisode(ep) && printIterations)
+				printOnlineUpdate(online);
+		}
+		
+		// The last batch may not be full:
+		if(online.getNumEpisodes() % batchSize != 0)
+		{
+			online.flush();
+			if(printIterations)
+				printOnlineUpdate(online);
+		}
+		
+		printParameters();
+		
+		long endTime = System.currentTimeMillis();
+		out.println("Took "+ (endTime - startTime) + " ms");
+		
+		return online.getBatchLogLikelihood();
+	}
+	
+	private void printOnlineUpdate(OnlineEM online)
 	{
-		double total = 1.0;
-		for(Episode e: episodes)
+		out.println(String.format("Online update %d, %d episodes, Log likelihood per episode = %f", online.getNumUpdates(), online.getNumEpisodes(), online.getBatchLogLikelihood()));
+	}
+	
+	// mStepNanos and parameterChange are 0 when the iteration ended without an M-step
+	private void notifyListeners(EMMetrics metrics, int iteration, double likelihood, double delta, boolean converged,
+			long eStepNanos, ExpectedCounts counts, long mStepNanos, double parameterChange, long allocatedStart)
+	{
+		if(listeners.isEmpty())
+			return;
+		
+		long allocatedBytes = allocatedStart < 0 ? -1 : EMMetrics.getThreadAllocatedBytes() - allocatedStart;
+		
+		metrics.set(iteration, likelihood, delta, converged, eStepNanos, counts, mStepNanos, parameterChange, allocatedBytes);
+		for(int i = 0; i < listeners.size(); i++)
+			listeners.get(i).iterationCompleted(metrics);
+	}
+	
+	// A failed checkpoint is reported but doesn't stop EM
+	private void checkpoint()
+	{
+		try
+		{
+			saveParameters(checkpointFile);
+		}
+		catch (IOException e)
+		{
+			e.printStackTrace();
+		}
+	}
+	
+	// Creates the parallel E-step for the configured pool, or returns null when the E-step runs serially
+	protected ParallelEStep createParallelEStep()
+	{
+		if(pool != null && episodes != null)
+			return new ParallelEStep(this, episodes, pool, structure, params.getNumSymbols());
+		
+		return null;
+	}
+	
+	// E-step: forward/backward probabilities and expected counts in a single pass over each episode
+	protected void expectationStep(ExpectedCounts counts, ParallelEStep parallelEStep)
+	{
+		if(parallelEStep != null)
+			parallelEStep.run(counts);
+		else
+			calcExpectedCounts(counts);
+	}
+	
+	// M-step: the new parameters are written to the second store and then swapped in, so nothing is copied or allocated
+	// maximise() overwrites every entry, so the old values left in newParams never leak into the next iteration
+	protected void maximisationStep(ExpectedCounts counts)
+	{
+		counts.maximise(newParams);
+		params.swap(newParams);
+	}
+	
+	// Serial E-step over every episode
+	protected void calcExpectedCounts(ExpectedCounts counts)
+	{
+		counts.clear();
+		if(kernel == null)
+			kernel = createKernel();
+		
+		if(kernel != null)
+		{
+			addEpisodeCounts(episodes, 0, 1, kernel, counts);
+		}
+		else if(episodes != null)
+		{
+			// Episodes held in memory keep their own lattice, indexed so the loop doesn't allocate an iterator:
+			for(int i = 0; i < episodes.size(); i++)
+			{
+				Episode ep = episodes.get(i);
+				addEpisodeCounts(ep, ep.getLattice(states.length), counts);
+			}
+		}
+		else
 		{
-			ArrayList<Move> moves = e.getMoves();
-			Move lastMove = moves.get(moves.size() - 1);
+			// Streamed episodes share the workspace:
+			for(Episode ep : episodeSource)
+				addEpisodeCounts(ep, getWorkspace(ep.getLength()), counts);
+		}
+	}
+	
+	// E-step for one episode, timing each phase into the counts
+	protected void addEpisodeCounts(Episode ep, Lattice lattice, ExpectedCounts counts)
+	{
+		long start = System.nanoTime();
+		calcForward(ep, lattice);
+		long forwardEnd = System.nanoTime();
+		calcBackward(ep, lattice);
+		long backwardEnd = System.nanoTime();
+		accumulateExpectedCounts(ep, lattice, counts);
+		counts.addTimings(forwardEnd - start, backwardEnd - forwardEnd, System.nanoTime() - backwardEnd);
+	}
+	
+	// E-step for the episodes first, first + step, ... of a list, batched through the kernel
+	protected void addEpisodeCounts(List<Episode> episodes, int first, int step, DenseKernel kernel, ExpectedCounts counts)
+	{
+		for(int i = first; i < episodes.size(); i += step)
+		{
+			Episode ep = episodes.get(i);
+			if(kernel.add(ep, ep.getLattice(states.length)))
+				addBatchCounts(kernel, counts);
+		}
+		
+		if(kernel.size() > 0)
+			addBatchCounts(kernel, counts);
+	}
+	
+	// Runs forward and backward for the whole batch, then accumulates each episode's counts and empties the batch
+	private void addBatchCounts(DenseKernel kernel, ExpectedCounts counts)
+	{
+		long start = System.nanoTime();
+		kernel.forward(params, scaled);
+		long forwardEnd = System.nanoTime();
+		kernel.backward(params);
+		long backwardEnd = System.nanoTime();
+		for(int e = 0; e < kernel.size(); e++)
+			accumulateExpectedCounts(kernel.getEpisode(e), kernel.getLattice(e), counts, false);
+		kernel.accumulateTransitions(params, counts.getTransitionArray());
+		counts.addTimings(forwardEnd - start, backwardEnd - forwardEnd, System.nanoTime() - backwardEnd);
+		
+		kernel.clear();
+	}
+	
+	// Returns the shared lattice, only reallocating when an episode is longer than any seen before
+	private Lattice getWorkspace(int length)
+	{
+		if(workspace == null || workspace.getCapacity() < length)
+			workspace = new Lattice(length, states.length);
+		
+		workspace.setLength(length);
+		return workspace;
+	}
+	
+	// Adds the expected initial, transition and emission counts of one episode to counts
+	// Uses the lattice filled by calcForwardBack, the normaliser is calculated once per time step
+	protected void accumulateExpectedCounts(Episode ep, Lattice lattice, ExpectedCounts counts)
+	{
+		accumulateExpectedCounts(ep, lattice, counts, true);
+	}
+	
+	// jointProbs can be false when the joint transition probabilities are added separately, e.g. by DenseKernel
+	protected void accumulateExpectedCounts(Episode ep, Lattice lattice, ExpectedCounts counts, boolean jointProbs)
+	{
+		int numStates = states.length;
+		int numSymbols = params.getNumSymbols();
+		double[] emission = params.getEmissionArray();
+		
+		double[] initialCounts = counts.getInitialArray();
+		double[] emissionCounts = counts.getEmissionArray();
+		double[] stateTotal = counts.getStateTotalArray();
+		double[] transitionTotal = counts.getTransitionTotalArray();
+		
+		ArrayList<Move> moves = ep.getMoves();
+		double[] forward = lattice.getForwardArray();
+		double[] backward = lattice.getBackwardArray();
+		double[] scale = lattice.getScaleArray();
+		
+		for(int observation = 0; observation < moves.size(); observation++)
+		{
+			int symbol = moves.get(observation).getSymbol();
+			int offset = observation*numStates;
+			
+			// Normaliser P(v1, ..., vT), calculated once for this time step:
+			double normaliser = 0.0;
+			for(int s = 0; s < numStates; s++)
+				normaliser += forward[offset + s] * backward[offset + s];
 			
-			// We sum the last move probabilities for each cell:
-			double episodeTotal = 0.0;
-			for(int i = 0; i < rows; i++)
+			// Marginal probability P(ht = cell) for every cell:
+			for(int s = 0; s < numStates; s++)
 			{
-				for(int j = 0; j < columns; j++)
-				{	
-					Cell currentCell = cells[i][j];
-					episodeTotal += lastMove.getForwardProb(currentCell);
-				}
+				double cellProb = forward[offset + s] * backward[offset + s] / normaliser;
+				
+				if(observation == 0)
+					initialCounts[s] += cellProb;
+				
+				stateTotal[s] += cellProb;
+				emissionCounts[s*numSymbols + symbol] += cellProb;
+				
+				// The transition probability only goes to t-1:
+				if(observation < moves.size() - 1)
+					transitionTotal[s] += cellProb;
 			}
 			
-			// We multiply the total as the episode observations are independent:
-			total *= episodeTotal;
+			// Joint probabilities P(ht+1 = nextCell, ht = currentCell), the next backward values carry the next scale factor:
+			if(jointProbs && observation < moves.size() - 1)
+			{
+				int nextSymbol = moves.get(observation + 1).getSymbol();
+				double jointScale = 1.0/(normaliser * scale[observation + 1]);
+				accumulateJointProbs(forward, backward, offset, offset + numStates, emission, nextSymbol, jointScale, counts.getTransitionArray());
+			}
+		}
+		counts.addEpisode(lattice.getLogProb());
+	}
+	
+	// Adds P(ht+1 = to, ht = from) for every allowed transition at one time step
+	protected void accumulateJointProbs(double[] forward, double[] backward, int offset, int nextOffset, double[] emission, int nextSymbol, double scale, double[] transitionCounts)
+	{
+		int numStates = states.length;
+		int numSymbols = params.getNumSymbols();
+		double[] transition = params.getTransitionArray();
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
+		
+		for(int from = 0; from < numStates; from++)
+		{
+			double forwardProb = forward[offset + from] * scale;
+			for(int k = successorStart[from]; k < successorStart[from + 1]; k++)
+			{
+				int to = successors[k];
+				transitionCounts[k] += forwardProb * transition[k] * emission[to*numSymbols + nextSymbol] * backward[nextOffset + to];
+			}
+		}
+	}
+	
+	// likelihood P(v1, v2,..., vt | params) from the lattices of the episodes held in memory...
+	protected double getLogLikelihood()
+	{
+		double total = 0.0;
+		for(int i = 0; i < episodes.size(); i++)
+		{
+			// We sum the logs as the episode observations are independent:
+			total += episodes.get(i).getLattice().getLogProb();
 		}	
 		
-		return Math.log(total);
+		return total;
 	}
 	
 	// Joint probability P(ht+1 = nextCell, ht = currentCell)
 	protected double calcJointProb(Move currentMove, Move nextMove, Cell currentCell, Cell nextCell)
 	{
-		double forward = currentMove.getForwardProb(currentCell);
-		double transProb = currentCell.getTransitionProb(nextCell);
-		double emissionProb = nextCell.getEmissionProb(nextMove.getReward());
-		double backward = nextMove.getBackwardProb(nextCell);
+		int numStates = states.length;
+		int numSymbols = params.getNumSymbols();
+		double[] transition = params.getTransitionArray();
+		double[] emission = params.getEmissionArray();
+		int nextSymbol = nextMove.getSymbol();
+		
+		Lattice lattice = currentMove.getEpisode().getLattice();
+		double[] forward = lattice.getForwardArray();
+		double[] backward = lattice.getBackwardArray();
+		int offset = currentMove.getIndex()*numStates;
+		int nextOffset = nextMove.getIndex()*numStates;
 		
-		// Transition we're interested in:
-		double numerator = forward * transProb * emissionProb * backward;
+		int from = currentCell.getId();
+		int to = nextCell.getId();
 		
-		// Sum over all cell combinations:
+		// Transition we're interested in, 0 if the structure doesn't allow it:
+		double numerator = forward[offset + from] * params.getTransition(from, to)
+				* emission[to*numSymbols + nextSymbol] * backward[nextOffset + to];
+		
+		// Sum over every allowed transition:
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
 		double denominator = 0.0;
-		for(int i = 0; i < rows; i++)
+		for(int s1 = 0; s1 < numStates; s1++)
 		{
-			for(int j = 0; j < columns; j++)
+			double forwardProb = forward[offset + s1];
+			for(int k = successorStart[s1]; k < successorStart[s1 + 1]; k++)
 			{
-				Cell c1 = cells[i][j];
-				for(int l = 0; l < rows; l++)
-				{
-					for(int k = 0; k < columns; k++)
-					{
-						Cell c2 = cells[l][k];
-						
-						forward = currentMove.getForwardProb(c1);
-						transProb = c1.getTransitionProb(c2);
-						emissionProb = c2.getEmissionProb(nextMove.getReward());
-						backward = nextMove.getBackwardProb(c2);
-						
-						denominator += forward * transProb * emissionProb * backward;
-					}
-				}
+				int s2 = successors[k];
+				denominator += forwardProb * transition[k] * emission[s2*numSymbols + nextSymbol] * backward[nextOffset + s2];
 			}
 		}
 		return numerator/denominator;
 	}
 	
-	// Calculate every forward and backward probability for every cell at each move
-	// Stores value within Move instance as key value pairs HashMap<Cell, Double>
-	private void calcForwardBack()
+	// Calculate forward and backward probabilities for every episode held in memory
+	protected void calcForwardBack()
 	{
-		for(Episode ep : episodes)
+		for(int i = 0; i < episodes.size(); i++)
 		{
-			ArrayList<Move> moves = ep.getMoves();	
+			Episode ep = episodes.get(i);
+			calcForwardBack(ep, ep.getLattice(states.length));
+		}
+	}
+	
+	// Calculate every forward and backward probability for every cell at each move
+	// Stores the values in the given lattice, overwriting the previous iteration in place
+	protected void calcForwardBack(Episode ep, Lattice lattice)
+	{
+		calcForward(ep, lattice);
+		calcBackward(ep, lattice);
+	}
+	
+	protected void calcForward(Episode ep, Lattice lattice)
+	{
+		int numStates = states.length;
+		int numSymbols = params.getNumSymbols();
+		double[] initial = params.getInitialArray();
+		double[] transition = params.getTransitionArray();
+		double[] emission = params.getEmissionArray();
+		int[] predecessorStart = structure.getPredecessorStart();
+		int[] predecessors = structure.getPredecessors();
+		int[] predecessorEdges = structure.getPredecessorEdges();
+		
+		ArrayList<Move> moves = ep.getMoves();
+		double[] forward = lattice.getForwardArray();
+		double[] scale = lattice.getScaleArray();
 
-			// Forward probability loop
-			for(int observation = 0; observation < moves.size(); observation++)
+		// Forward probability loop
+		for(int observation = 0; observation < moves.size(); observation++)
+		{
+			int symbol = moves.get(observation).getSymbol();
+			int offset = observation*numStates;
+			int prevOffset = offset - numStates;
+			
+			// Loop through every cell
+			for(int s = 0; s < numStates; s++)
 			{
-				Move move = moves.get(observation);
-				int r = move.getReward();
-				
-				// Loop through every cell
-				for(int i = 0; i < rows; i++)
+				double forwardProb = 0.0;
+				if(observation == 0)
+				{
+					// Use initial probability for the first move in the episode:
+					forwardProb = initial[s] * emission[s*numSymbols + symbol];
+				}
+				else // Take transition probabilities into account:
 				{
-					for(int j = 0; j < columns; j++)
+					// Loop through every cell that can transition to this one
+					for(int k = predecessorStart[s]; k < predecessorStart[s + 1]; k++)
 					{
-						Cell c = cells[i][j];
+						int from = predecessors[k];
 						
-						double forwardProb = 0.0;
-						if(observation == 0)
-						{
-							// Use initial probability for the first move in the episode:
-							forwardProb = c.getInitialProb() * c.getEmissionProb(r);							
-							move.setFowardProb(c, forwardProb);
-						}
-						else // Take transition probabilities into account:
-						{
-							// Get the previous move in the sequence:
-							Move prev_move = moves.get(observation - 1);
-							
-							// Loop through every possible previous cell transition
-							for(int l = 0; l < rows; l++)
-							{
-								for(int k = 0; k < columns; k++)
-								{
-									Cell transitionFromCell = cells[l][k];
-									double prev_forward = prev_move.getForwardProb(transitionFromCell);
-									double transProb = transitionFromCell.getTransitionProb(c); // P(Ht+1 = c|Ht = transitionFromCell)
-									
-									//Sums over all cells using their prev forward and transition prob:
-									forwardProb += prev_forward * transProb; // emission comes in later
-								}
-							}
-							
-							// currentEmission is constant throughout equation so we multiply at the end:
-							double currentEmission = c.getEmissionProb(r);
-							forwardProb = forwardProb * currentEmission;
-							move.setFowardProb(c, forwardProb);
-						}
+						//Sums over all cells using their prev forward and transition prob:
+						forwardProb += forward[prevOffset + from] * transition[predecessorEdges[k]]; // emission comes in later
 					}
+					
+					// currentEmission is constant throughout equation so we multiply at the end:
+					forwardProb = forwardProb * emission[s*numSymbols + symbol];
 				}
+				forward[offset + s] = forwardProb;
 			}
 			
-			// backward probability loop
-			// Loop backwards from last observation to first:
-			for(int observation = moves.size() - 1; observation >= 0; observation--)
-			{
-				Move move = moves.get(observation);		
+			// Normalise the forward probabilities so long episodes don't underflow:
+			if(scaled)
+				lattice.scaleForward(observation);
+			else
+				scale[observation] = 1.0;
+		}
+	}
+	
+	// Needs the scale factors from calcForward
+	protected void calcBackward(Episode ep, Lattice lattice)
+	{
+		int numStates = states.length;
+		int numSymbols = params.getNumSymbols();
+		double[] transition = params.getTransitionArray();
+		double[] emission = params.getEmissionArray();
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
+		
+		ArrayList<Move> moves = ep.getMoves();
+		double[] backward = lattice.getBackwardArray();
+		double[] scale = lattice.getScaleArray();
 		
-				// Loop every cell
-				for(int i = 0; i < rows; i++)
+		// backward probability loop
+		// Loop backwards from last observation to first:
+		for(int observation = moves.size() - 1; observation >= 0; observation--)
+		{
+			int offset = observation*numStates;
+			int nextOffset = offset + numStates;
+			
+			// Loop every cell
+			for(int s = 0; s < numStates; s++)
+			{
+				double backwardProb = 0.0;			
+				if(observation == moves.size() - 1)
+				{
+					backwardProb = 1.0;
+				}
+				else
 				{
-					for(int j = 0; j < columns; j++)
+					int next_Symbol = moves.get(observation + 1).getSymbol();
+					
+					for(int k = successorStart[s]; k < successorStart[s + 1]; k++)
 					{
-						Cell c = cells[i][j];
+						int to = successors[k];
 						
-						double backwardProb = 0.0;			
-						if(observation == moves.size() - 1)
-						{
-							backwardProb = 1.0;
-							move.setBackwardProb(c, backwardProb);
-						}
-						else
-						{
-							Move next_Move = moves.get(observation + 1);
-							int next_Reward = next_Move.getReward();
-							
-							for(int l = 0; l < rows; l++)
-							{
-								for(int k = 0; k < columns; k++)
-								{
-									Cell transitionCell = cells[l][k];
-									
-									double next_backward = next_Move.getBackwardProb(transitionCell);
-									double transProb = c.getTransitionProb(transitionCell);
-									double emissionProb = transitionCell.getEmissionProb(next_Reward);
-									
-									//Sums over states using their prev forward and transition prob:
-									backwardProb += next_backward * transProb * emissionProb;
-								}
-							}	
-							move.setBackwardProb(c, backwardProb);
-						}		
+						//Sums over states using their next backward, transition and emission prob:
+						backwardProb += backward[nextOffset + to] * transition[k] * emission[to*numSymbols + next_Symbol];
 					}
+					
+					// Backward probabilities share the scale factor of the next forward step:
+					backwardProb = backwardProb / scale[observation + 1];
 				}
-			}	
-		}
+				backward[offset + s] = backwardProb;
+			}
+		}	
 	}
 	
 	protected void printParameters()
 	{
-		System.out.println("\n\t--- Parameters: ---\n");
+		out.println("\n\t--- Parameters: ---\n");
 		for(int i = 0; i < rows; i++)
 		{
 			for(int j = 0; j < columns; j++)
 			{	
 				Cell currentCell = cells[i][j];
-				currentCell.printCellParamaters();
-				System.out.println("");
+				currentCell.printCellParamaters(states, out);
+				out.println("");
 			}
 		}
 	}
 		
-	//Returns an ArrayList of episodes containing the individual moves:
-	private static ArrayList<Episode> getEpisodesFromFile(String fileName) throws IOException
+	//Returns an ArrayList of episodes containing the individual moves, also used to read held out episodes for this grid:
+	public ArrayList<Episode> getEpisodesFromFile(String fileName) throws IOException
 	{
 		ArrayList<Episode> episodes = new ArrayList<Episode>();
-		BufferedReader br = new BufferedReader(new FileReader(fileName));
+		EpisodeReader reader = new EpisodeReader(new BufferedReader(new FileReader(fileName)), cells, getAlphabet());
 		try
 		{
-		    // Regex used to parse string into groups within the brackets (1, 2) 3
-		    Pattern visiblePattern = Pattern.compile(".([0-3]),([0-3]). (-?[01])");
-		    Pattern hiddenPattern = Pattern.compile("-?[01]");
-		    Matcher m = null;
-		    
-		    // Create new episode to add the moves to
-		    Episode ep = new Episode();
-		    
-		    // read line by line until the end of the document
-		    String line = br.readLine();		    
-		    while (line != null)
-		    {
-		    	if(line.isEmpty()) // Empty line = end of episode
-		    	{
-		    		if(ep.getLength() > 0)
-		    		{
-		    			// Add episode to list of episodes and create a new one;
-		    			episodes.add(ep);
-			    		ep = new Episode();
-		    		}
-		    	}
-		    	else
-		    	{
-		    		//Finds matches for the regex of the current line
-		    		m = visiblePattern.matcher(line);
-			    	if(m.matches())
-			    	{
-			    		// Extracts the substrings from () groups
-					    int x = Integer.parseInt(m.group(1));
-					    int y = Integer.parseInt(m.group(2));
-					    int r = Integer.parseInt(m.group(3));
-					    	
-					    Cell cell = cells[x][y];
-					    	
-					    // Adds move to current episode
-					    ep.addMove(cell, r);
-			    	}
-			    	else
-			    	{
-			    		// Check for the hidden pattern of just the reward:
-			    		m = hiddenPattern.matcher(line);
-			    		if(m.matches())
-			    		{
-			    			// Add the move with a NULL cell:
-			    			// group(0) is the entire string
-				    		int r = Integer.parseInt(m.group(0));
-				    		ep.addMove(null, r);
-			    		}
-			    		else
-			    		{
-			    			throw new IOException("File data is not in the correct format (x, y) r OR r: " + line);
-			    		}
-			    	}
-		    	}
-		        line = br.readLine();
-		    }
+			Episode ep = reader.readEpisode();
+			while(ep != null)
+			{
+				episodes.add(ep);
+				ep = reader.readEpisode();
+			}
 		}
 		finally
 		{
-		    br.close();
+			reader.close();
 		}
 		return episodes;
 	}
@@ -0,0 +1,100 @@
+package mlap_prog;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// Publishes the latest EM iteration as the MBean mlap_prog:type=EM,name=<name>, e.g. for JConsole
+public class JmxEMListener implements EMListener, EMMetricsMXBean {
+
+	private ObjectName objectName;
+
+	// Written by the training thread and read by JMX threads:
+	private volatile int iteration;
+	private volatile double logLikelihood, delta, parameterChange;
+	private volatile boolean converged;
+	private volatile long eStepNanos, forwardNanos, backwardNanos, accumulateNanos, mStepNanos, allocatedBytes;
+
+	public JmxEMListener(String name) throws JMException
+	{
+		objectName = new ObjectName("mlap_prog:type=EM,name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+	}
+
+	public void unregister() throws JMException
+	{
+		ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+	}
+
+	@Override
+	public void iterationCompleted(EMMetrics metrics)
+	{
+		iteration = metrics.getIteration();
+		logLikelihood = metrics.getLogLikelihood();
+		delta = metrics.getDelta();
+		converged = metrics.isConverged();
+		eStepNanos = metrics.getEStepNanos();
+		forwardNanos = metrics.getForwardNanos();
+		backwardNanos = metrics.getBackwardNanos();
+		accumulateNanos = metrics.getAccumulateNanos();
+		mStepNanos = metrics.getMStepNanos();
+		parameterChange = metrics.getParameterChange();
+		allocatedBytes = metrics.getAllocatedBytes();
+	}
+
+	public int getIteration()
+	{
+		return iteration;
+	}
+
+	public double getLogLikelihood()
+	{
+		return logLikelihood;
+	}
+
+	public double getDelta()
+	{
+		return delta;
+	}
+
+	public boolean isConverged()
+	{
+		return converged;
+	}
+
+	public double getEStepMillis()
+	{
+		return eStepNanos/1e6;
+	}
+
+	public double getForwardMillis()
+	{
+		return forwardNanos/1e6;
+	}
+
+	public double getBackwardMillis()
+	{
+		return backwardNanos/1e6;
+	}
+
+	public double getAccumulateMillis()
+	{
+		return accumulateNanos/1e6;
+	}
+
+	public double getMStepMillis()
+	{
+		return mStepNanos/1e6;
+	}
+
+	public double getParameterChange()
+	{
+		return parameterChange;
+	}
+
+	public long getAllocatedBytes()
+	{
+		return allocatedBytes;
+	}
+}
@@ -0,0 +1,132 @@
+package mlap_prog;
+
+public class Lattice {
+
+	private int length, capacity, numStates;
+
+	// Contiguous forward (alpha) and backward (beta) buffers indexed [t*numStates + state]:
+	private double[] forward, backward;
+
+	// Scale factor applied to each time step, all 1.0 when the lattice is unscaled:
+	private double[] scale;
+
+	public Lattice(int length, int numStates)
+	{
+		this.length = length;
+		this.capacity = length;
+		this.numStates = numStates;
+		forward = new double[length*numStates];
+		backward = new double[length*numStates];
+		scale = new double[length];
+	}
+
+	public int getLength()
+	{
+		return length;
+	}
+
+	public int getCapacity()
+	{
+		return capacity;
+	}
+
+	// Reuses the buffers for an episode of a different length, which must fit the capacity
+	public void setLength(int length)
+	{
+		if(length > capacity)
+			throw new IllegalArgumentException("Episode of length " + length + " doesn't fit a lattice with capacity " + capacity);
+
+		this.length = length;
+	}
+
+	public int getNumStates()
+	{
+		return numStates;
+	}
+
+	public double getForward(int t, int state)
+	{
+		return forward[t*numStates + state];
+	}
+
+	public double getBackward(int t, int state)
+	{
+		return backward[t*numStates + state];
+	}
+
+	// The buffers are written in place by calcForwardBack on every EM iteration:
+
+	public double[] getForwardArray()
+	{
+		return forward;
+	}
+
+	public double[] getBackwardArray()
+	{
+		return backward;
+	}
+
+	public double[] getScaleArray()
+	{
+		return scale;
+	}
+
+	// Rabiner scaling: divides the forward probabilities at time t by their sum and keeps the sum as the scale factor
+	public void scaleForward(int t)
+	{
+		int offset = t*numStates;
+		double total = 0.0;
+		for(int s = 0; s < numStates; s++)
+			total += forward[offset + s];
+
+		for(int s = 0; s < numStates; s++)
+			forward[offset + s] /= total;
+
+		scale[t] = total;
+	}
+
+	// P(h_t = state | episode), normalised over every state at time t:
+	public double getMarginal(int t, int state)
+	{
+		int offset = t*numStates;
+		double denominator = 0.0;
+		for(int s = 0; s < numStates; s++)
+			denominator += forward[offset + s] * backward[offset + s];
+
+		return forward[offset + state] * backward[offset + state] / denominator;
+	}
+
+	// Writes P(h_t = state | episode) for every time step and state to posteriors[t*numStates + state], one normaliser per time step
+	public void getPosteriors(double[] posteriors)
+	{
+		for(int t = 0; t < length; t++)
+		{
+			int offset = t*numStates;
+			double denominator = 0.0;
+			for(int s = 0; s < numStates; s++)
+			{
+				double joint = forward[offset + s] * backward[offset + s];
+				posteriors[offset + s] = joint;
+				denominator += joint;
+			}
+
+			for(int s = 0; s < numStates; s++)
+				posteriors[offset + s] /= denominator;
+		}
+	}
+
+	// log P(v_1, ..., v_T), the log of the final forward sum plus the log of every scale factor:
+	public double getLogProb()
+	{
+		int offset = (length - 1)*numStates;
+		double total = 0.0;
+		for(int s = 0; s < numStates; s++)
+			total += forward[offset + s];
+
+		double logProb = Math.log(total);
+		for(int t = 0; t < length; t++)
+			logProb += Math.log(scale[t]);
+
+		return logProb;
+	}
+}
@@ -0,0 +1,95 @@
+package mlap_prog;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+// A worker in the coordinator's process that runs its shard's E-step on a thread of its own
+public class LocalEMWorker implements EMWorker {
+
+	private Grid shard;
+	private ExecutorService executor;
+
+	// Counts of the last E-step, reused every iteration:
+	private ExpectedCounts counts;
+	private ParallelEStep parallelEStep;
+	private Future<?> pending;
+
+	// shard holds the worker's episodes, its parameters are overwritten by every sendParameters
+	// Like DistributedGrid, it must be a dense grid rather than an OptimisedGrid
+	public LocalEMWorker(Grid shard)
+	{
+		if(!shard.getTransitionStructure().isDense())
+			throw new IllegalArgumentException("Distributed EM only supports dense grids, the shard is an OptimisedGrid or has a sparse transition structure");
+
+		this.shard = shard;
+		counts = new ExpectedCounts(shard.getTransitionStructure(), shard.params.getNumSymbols());
+		parallelEStep = shard.createParallelEStep();
+
+		// A daemon thread, so a coordinator that fails without closing its workers doesn't keep the JVM alive:
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory(){
+
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "EM worker");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	@Override
+	public void sendParameters(Parameters params)
+	{
+		if(pending != null)
+			throw new IllegalStateException("The counts of the last E-step haven't been received");
+
+		shard.params.copyFrom(params);
+		pending = executor.submit(new Runnable(){
+
+			@Override
+			public void run()
+			{
+				shard.expectationStep(counts, parallelEStep);
+			}
+		});
+	}
+
+	@Override
+	public void receiveCounts(ExpectedCounts out) throws IOException
+	{
+		if(pending == null)
+			throw new IllegalStateException("No E-step has been started");
+
+		try
+		{
+			pending.get();
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for the E-step", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new IOException("The E-step failed", e.getCause());
+		}
+		finally
+		{
+			pending = null;
+		}
+
+		out.clear();
+		out.merge(counts);
+	}
+
+	@Override
+	public void close()
+	{
+		executor.shutdown();
+	}
+}
@@ -1,58 +1,295 @@
 package mlap_prog;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import javax.management.JMException;
+
 public class MLAP {
 
-	public static void main(String[] args)
+	// Snapshot options: --load file warm starts EM, --save file keeps the trained parameters, --checkpoint n saves them every n iterations
+	private static String loadFile;
+	private static String saveFile;
+	private static int checkpointInterval = 0;
+	
+	// --quiet leaves out the line printed for every EM iteration, --jmx publishes each run's EM metrics as an MBean
+	private static boolean quiet = false;
+	private static boolean jmx = false;
+	private static boolean accelerate = false;
+	
+	// Episodes per DenseKernel batch, 0 keeps the CSR loops:
+	private static int kernelBatchSize = 0;
+	
+	// --online n trains with one pass of online EM over batches of n episodes, 0 runs batch EM, --decay sets its step size decay:
+	private static int onlineBatchSize = 0;
+	private static double onlineDecay = 0.7;
+	private static AtomicInteger jmxRuns = new AtomicInteger();
+	
+	// Stopping rule options, 0 means not set: --relative-tolerance replaces the |diff| < 0.01 rule, --max-iterations and --max-seconds bound the run
+	private static double relativeTolerance = 0.0;
+	private static int maxIterations = 0;
+	private static double maxSeconds = 0.0;
+	
+	// --parameter-change x stops once the parameters move less than x, --held-out file stops once the file's likelihood hasn't improved for --patience iterations:
+	private static double parameterChange = 0.0;
+	private static String heldOutFile;
+	private static int patience = 3;
+
+	public static void main(String[] args) throws IOException
 	{
 		String fileName = "task1.dat";
 		String task = "1";
 		
-		if(args.length == 2)
+		// Options can go anywhere, everything else is positional:
+		ArrayList<String> positional = new ArrayList<String>();
+		for(int i = 0; i < args.length; i++)
 		{
-			task = args[0];
-			fileName = args[1];
+			if(args[i].equals("--load") && i + 1 < args.length)
+				loadFile = args[++i];
+			else if(args[i].equals("--save") && i + 1 < args.length)
+				saveFile = args[++i];
+			else if(args[i].equals("--checkpoint") && i + 1 < args.length)
+				checkpointInterval = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--relative-tolerance") && i + 1 < args.length)
+				relativeTolerance = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--max-iterations") && i + 1 < args.length)
+				maxIterations = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--max-seconds") && i + 1 < args.length)
+				maxSeconds = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--parameter-change") && i + 1 < args.length)
+				parameterChange = Double.parseDouble(args[++i]);
+			else if(args[i].equals("--held-out") && i + 1 < args.length)
+				heldOutFile = args[++i];
+			else if(args[i].equals("--patience") && i + 1 < args.length)
+				patience = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--quiet"))
+				quiet = true;
+			else if(args[i].equals("--jmx"))
+				jmx = true;
+			else if(args[i].equals("--accelerate"))
+				accelerate = true;
+			else if(args[i].equals("--kernel") && i + 1 < args.length)
+				kernelBatchSize = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--online") && i + 1 < args.length)
+				onlineBatchSize = Integer.parseInt(args[++i]);
+			else if(args[i].equals("--decay") && i + 1 < args.length)
+				onlineDecay = Double.parseDouble(args[++i]);
+			else if(args[i].startsWith("--"))
+				throw new IllegalArgumentException("Unknown option " + args[i] + ", expected --load file, --save file, --checkpoint iterations, --relative-tolerance x, --max-iterations n, --max-seconds s, --parameter-change x, --held-out file, --patience n, --quiet, --jmx, --accelerate, --kernel batch, --online batch or --decay d");
+			else
+				positional.add(args[i]);
+		}
+		
+		if(checkpointInterval > 0 && saveFile == null)
+			throw new IllegalArgumentException("--checkpoint needs a --save file to write the checkpoints to");
+		if(onlineBatchSize > 0 && (accelerate || checkpointInterval > 0))
+			throw new IllegalArgumentException("Online EM makes a single pass, it can't be combined with --accelerate or --checkpoint");
+		if(patience < 1)
+			throw new IllegalArgumentException("--patience must be at least 1");
+		
+		if(positional.size() == 2 || positional.size() == 4)
+		{
+			task = positional.get(0);
+			fileName = positional.get(1);
+			
+			// The grid is 4x4 unless the size is given, the rewards are read from the file's header:
+			final int rows = positional.size() == 4 ? Integer.parseInt(positional.get(2)) : 4;
+			final int columns = positional.size() == 4 ? Integer.parseInt(positional.get(3)) : 4;
 			
-			Grid task_grid = new Grid(4, 4, fileName);
+			// A warm start trains once from the snapshot instead of from several random starting points:
+			int restarts = loadFile == null ? 10 : 1;
+			if(checkpointInterval > 0 && restarts > 1 && (task.equals("3") || task.equals("4")))
+				throw new IllegalArgumentException("Checkpoints need a single run, use --load to warm start task " + task);
 			
+			// Online EM makes a single pass, so the episodes are streamed rather than held in memory, except for task 5 which decodes them:
+			final boolean streamEpisodes = onlineBatchSize > 0 && !task.equals("5");
+			
+			// Tasks 3 and 4 build a grid for every restart, so the single grid is only read for the other tasks:
 			System.out.println("\t--- Task " + task + " ---\n");
 			if(task.equals("1"))
 			{
+				Grid task_grid = new Grid(rows, columns, fileName, streamEpisodes);
 				task_grid.findVisibleParameters();
 				System.out.println("...Any missing parameters are assumed zero...");
+				saveSnapshot(task_grid);
 			}
 			else if(task.equals("2"))
 			{
+				Grid task_grid = new Grid(rows, columns, fileName, streamEpisodes);
 				task_grid.makeGridUniform();
+				prepareGrid(task_grid);
 				task_grid.findHiddenParameters();
+				saveSnapshot(task_grid);
 			}
 			else if(task.equals("3"))
 			{
-				for(int i = 1; i <= 10; i++)
+				// Random restarts train concurrently, each on its own grid:
+				final String file = fileName;
+				RestartRunner runner = new RestartRunner(restarts, Runtime.getRuntime().availableProcessors());
+				Grid best = runner.run(new Supplier<Grid>(){
+					
+					@Override
+					public Grid get()
+					{
+						Grid grid = new Grid(rows, columns, file, streamEpisodes);
+						grid.makeGridRandom();
+						prepareGrid(grid);
+						return grid;
+					}
+				}, task, System.out);
+				
+				printBestRun(runner, best);
+				saveSnapshot(best);
+			}
+			else if(task.equals("4"))
+			{
+				final String file = fileName;
+				RestartRunner runner = new RestartRunner(restarts, Runtime.getRuntime().availableProcessors());
+				Grid best = runner.run(new Supplier<Grid>(){
+					
+					@Override
+					public Grid get()
+					{
+						// Faster algorithm:
+						OptimisedGrid optimised_grid = new OptimisedGrid(rows, columns, file, streamEpisodes);
+						optimised_grid.makeGridWalls();
+						prepareGrid(optimised_grid);
+						return optimised_grid;
+					}
+				}, task, System.out);
+				
+				System.out.println("...Any missing parameters are assumed zero...\n");
+				printBestRun(runner, best);
+				saveSnapshot(best);
+			}
+			else if(task.equals("5"))
+			{
+				// Parameters are estimated from the visible cells, then the cells are decoded from the rewards alone:
+				Grid task_grid = new Grid(rows, columns, fileName);
+				task_grid.findVisibleParameters();
+				System.out.println();
+				printViterbiPaths(task_grid);
+			}
+			else
+				throw new IllegalArgumentException("Unknown task " + task + ", expected 1 to 5");
+	    }
+		else
+			throw new IllegalArgumentException("Please specify the arguments: task_number, fileName, [rows, columns], [--load snapshot], [--save snapshot], [--checkpoint iterations], [--relative-tolerance x], [--max-iterations n], [--max-seconds s], [--parameter-change x], [--held-out file], [--patience n], [--quiet], [--jmx], [--accelerate], [--kernel batch], [--online batch], [--decay d]");	
+	}
+	
+	// Loads the --load snapshot over the starting parameters and applies the checkpoint, printing, JMX, acceleration and kernel options
+	private static void prepareGrid(Grid grid)
+	{
+		try
+		{
+			if(loadFile != null)
+				grid.warmStart(loadFile);
+		}
+		catch(IOException e)
+		{
+			throw new UncheckedIOException(e);
+		}
+		
+		if(checkpointInterval > 0)
+			grid.setCheckpoint(saveFile, checkpointInterval);
+		
+		grid.setPrintIterations(!quiet);
+		grid.setAccelerated(accelerate);
+		grid.setKernelBatchSize(kernelBatchSize);
+		grid.setOnline(onlineBatchSize, onlineDecay);
+		
+		if(relativeTolerance > 0 || maxIterations > 0 || maxSeconds > 0 || parameterChange > 0 || heldOutFile != null)
+		{
+			ArrayList<StoppingRule> rules = new ArrayList<StoppingRule>();
+			rules.add(relativeTolerance > 0 ? StoppingRules.relativeTolerance(relativeTolerance) : StoppingRules.absoluteTolerance(0.01));
+			if(maxIterations > 0)
+				rules.add(StoppingRules.maxIterations(maxIterations));
+			if(maxSeconds > 0)
+				rules.add(StoppingRules.maxTime((long) (maxSeconds*1000)));
+			if(parameterChange > 0)
+				rules.add(StoppingRules.parameterChange(parameterChange));
+			if(heldOutFile != null)
+			{
+				// Read for every grid, as the episodes' moves refer to its cells:
+				try
 				{
-					System.out.println(String.format("\t ******* TASK %s RUN %d/10 *******\n", task, i));	
-					task_grid.makeGridRandom();
-					task_grid.findHiddenParameters();
-					System.out.println(String.format("\t ******* END OF TASK %s RUN %d/10 *******\n", task, i));
+					rules.add(StoppingRules.heldOutPlateau(grid, grid.getEpisodesFromFile(heldOutFile), patience, 0.01));
+				}
+				catch(IOException e)
+				{
+					throw new UncheckedIOException(e);
 				}
 			}
-			else if(task.equals("4"))
+			grid.setStoppingRules(rules.toArray(new StoppingRule[rules.size()]));
+		}
+		
+		if(jmx)
+		{
+			try
+			{
+				grid.addListener(new JmxEMListener("run " + jmxRuns.incrementAndGet()));
+			}
+			catch(JMException e)
 			{
-				for(int i = 1; i <= 10; i++)
+				throw new IllegalStateException("Couldn't register the EM metrics with JMX", e);
+			}
+		}
+	}
+	
+	private static void saveSnapshot(Grid grid) throws IOException
+	{
+		if(saveFile != null && grid != null)
+		{
+			grid.saveParameters(saveFile);
+			System.out.println("Saved the parameters to " + saveFile);
+		}
+	}
+	
+	// Prints the most likely cells of every episode and how many match the cells in the file
+	private static void printViterbiPaths(Grid grid)
+	{
+		ViterbiDecoder decoder = new ViterbiDecoder(grid);
+		ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		int[][] paths = decoder.decodeAll(grid.episodes, pool);
+		pool.shutdown();
+		
+		int correct = 0;
+		int total = 0;
+		for(int i = 0; i < paths.length; i++)
+		{
+			ArrayList<Move> moves = grid.episodes.get(i).getMoves();
+			StringBuilder decoded = new StringBuilder();
+			int episodeCorrect = 0;
+			for(int t = 0; t < paths[i].length; t++)
+			{
+				if(paths[i][t] == -1)
 				{
-					System.out.println(String.format("\t ******* TASK %s RUN %d/10 *******\n", task, i));
-					
-					// Faster algorithm:
-					OptimisedGrid optimised_grid = new OptimisedGrid(4, 4, fileName);
-					optimised_grid.makeGridWalls();
-					optimised_grid.findHiddenParameters();
-										
-					System.out.println("\n...Any missing parameters are assumed zero...\n");
-					
-					System.out.println(String.format("\t ******* END OF TASK %s RUN %d/10 *******\n", task, i));
+					decoded.append(" ?");
+					continue;
 				}
+				
+				Cell cell = grid.states[paths[i][t]];
+				decoded.append(String.format(" (%d,%d)", cell.getX(), cell.getY()));
+				if(moves.get(t).getCell() == cell)
+					episodeCorrect++;
 			}
-	    }
+			System.out.println(String.format("Episode %d: %d/%d cells correct\n\t%s", i + 1, episodeCorrect, paths[i].length, decoded.toString().trim()));
+			
+			correct += episodeCorrect;
+			total += paths[i].length;
+		}
+		System.out.println(String.format("\nViterbi accuracy: %d/%d = %f", correct, total, (double) correct/total));
+	}
+	
+	private static void printBestRun(RestartRunner runner, Grid best)
+	{
+		if(best == null)
+			System.out.println("**Every run became undefined, run the task again for new randomly generated starting parameters**");
 		else
-			throw new IllegalArgumentException("Please specify two arguments: task_number, fileName");	
+			System.out.println(String.format("Best run: %d, Log likelihood = %f", runner.getBestRun(), runner.getBestLikelihood()));
 	}
 }
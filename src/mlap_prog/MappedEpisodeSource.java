@@ -0,0 +1,183 @@
+package mlap_prog;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+// Reads episodes straight out of a memory mapped file in BinaryEpisodeFormat, so nothing is parsed or copied up front
+public class MappedEpisodeSource implements EpisodeSource {
+
+	// A single mapping can't exceed 2GB, so large files are mapped in overlapping segments:
+	private static final long SEGMENT_BYTES = 1L << 30;
+	private static final long SEGMENT_OVERLAP = 8;
+
+	private String fileName;
+	private MappedByteBuffer[] segments;
+
+	private int numEpisodes;
+	private boolean hasStates;
+	private long offsetsStart, symbolsStart, statesStart;
+
+	// Cells indexed by state id, used for files that include the visible cells:
+	private Cell[] states;
+
+	// The rewards stored in the file, which must match the model's alphabet:
+	private Alphabet alphabet;
+
+	public MappedEpisodeSource(String fileName, Cell[] states, Alphabet alphabet) throws IOException
+	{
+		this.fileName = fileName;
+		this.states = states;
+		this.alphabet = alphabet;
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try
+		{
+			FileChannel channel = file.getChannel();
+			long size = channel.size();
+
+			int numSegments = (int) ((size + SEGMENT_BYTES - 1)/SEGMENT_BYTES);
+			segments = new MappedByteBuffer[Math.max(1, numSegments)];
+			for(int i = 0; i < segments.length; i++)
+			{
+				long start = i*SEGMENT_BYTES;
+				long length = Math.min(SEGMENT_BYTES + SEGMENT_OVERLAP, size - start);
+				segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.max(0, length));
+			}
+		}
+		finally
+		{
+			// The mappings stay valid once the file is closed:
+			file.close();
+		}
+
+		if(getInt(0) != BinaryEpisodeFormat.MAGIC)
+			throw new IOException(fileName + " is not a binary episode file");
+		if(getInt(4) != BinaryEpisodeFormat.VERSION)
+			throw new IOException(fileName + " has an unsupported version " + getInt(4));
+
+		numEpisodes = getInt(8);
+		hasStates = (getInt(12) & BinaryEpisodeFormat.FLAG_STATES) != 0;
+
+		int numSymbols = getInt(BinaryEpisodeFormat.HEADER_BYTES);
+		if(numSymbols != alphabet.size())
+			throw new IOException(fileName + " was written with " + numSymbols + " rewards, the grid uses " + Arrays.toString(alphabet.getRewards()));
+		for(int symbol = 0; symbol < numSymbols; symbol++)
+		{
+			int reward = getInt(BinaryEpisodeFormat.HEADER_BYTES + 4L*(symbol + 1));
+			if(alphabet.getReward(symbol) != reward)
+				throw new IOException(fileName + " was written with a different alphabet to " + alphabet.toHeader());
+		}
+
+		offsetsStart = BinaryEpisodeFormat.getOffsetsStart(numSymbols);
+		symbolsStart = offsetsStart + 8L*(numEpisodes + 1);
+		statesStart = symbolsStart + getOffset(numEpisodes);
+	}
+
+	public int getNumEpisodes()
+	{
+		return numEpisodes;
+	}
+
+	public boolean hasStates()
+	{
+		return hasStates;
+	}
+
+	// Index of the first step of an episode, getOffset(numEpisodes) is the total number of steps
+	public long getOffset(int episode)
+	{
+		return getLong(offsetsStart + 8L*episode);
+	}
+
+	public int getSymbol(long step)
+	{
+		int symbol = getByte(symbolsStart + step);
+		if(symbol < 0 || symbol >= alphabet.size())
+			throw invalid("step " + step + " has the symbol " + symbol + ", the grid uses " + alphabet.size() + " rewards");
+
+		return symbol;
+	}
+
+	// The state id of a step, -1 if the move is hidden
+	public int getState(long step)
+	{
+		int state = getInt(statesStart + 4L*step);
+		if(state < -1 || state >= states.length)
+			throw invalid("step " + step + " is in state " + state + ", the grid has " + states.length + " states");
+
+		return state;
+	}
+
+	// The file isn't checked up front, a bad step is reported once it is read:
+	private UncheckedIOException invalid(String message)
+	{
+		return new UncheckedIOException(new IOException(fileName + ": " + message));
+	}
+
+	public Episode getEpisode(int index)
+	{
+		long start = getOffset(index);
+		long end = getOffset(index + 1);
+
+		Episode ep = new Episode();
+		for(long step = start; step < end; step++)
+		{
+			Cell cell = null;
+			if(hasStates)
+			{
+				int state = getState(step);
+				if(state >= 0)
+					cell = states[state];
+			}
+			int symbol = getSymbol(step);
+			ep.addMove(cell, alphabet.getReward(symbol), symbol);
+		}
+		return ep;
+	}
+
+	public Iterator<Episode> iterator()
+	{
+		return new Iterator<Episode>(){
+
+			private int next = 0;
+
+			@Override
+			public boolean hasNext()
+			{
+				return next < numEpisodes;
+			}
+
+			@Override
+			public Episode next()
+			{
+				if(next >= numEpisodes)
+					throw new NoSuchElementException();
+
+				return getEpisode(next++);
+			}
+		};
+	}
+
+	// Absolute reads, the overlap means a value never straddles two segments:
+
+	private int getByte(long position)
+	{
+		return segments[(int) (position/SEGMENT_BYTES)].get((int) (position % SEGMENT_BYTES));
+	}
+
+	private int getInt(long position)
+	{
+		return segments[(int) (position/SEGMENT_BYTES)].getInt((int) (position % SEGMENT_BYTES));
+	}
+
+	private long getLong(long position)
+	{
+		return segments[(int) (position/SEGMENT_BYTES)].getLong((int) (position % SEGMENT_BYTES));
+	}
+}
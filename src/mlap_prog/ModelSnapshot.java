@@ -0,0 +1,376 @@
+package mlap_prog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/*
+ Saves and loads a grid's trained parameters so EM can warm start or resume from a checkpoint.
+
+ Binary layout, all values big endian:
+
+ int magic, int version, int rows, int columns, int iteration
+ int numSymbols, int[numSymbols] rewards
+ the transition structure as written by TransitionStructure.write
+ double[numStates] initial, double[numEdges] transition, double[numStates*numSymbols] emission
+
+ Files ending in .json hold the same fields as a JSON object instead, which is easier to inspect but larger, and can't hold
+ NaN or infinite parameters, which JSON has no numbers for; save those to a binary snapshot. A dense
+ structure isn't written out and its transitions are a full matrix, otherwise successorStart and successors give the edges.
+ Version 1 files, and JSON files without successors, hold a full transition matrix whatever the grid's structure;
+ the grid's edges are taken from it when they're loaded.
+ Snapshots are written to a temporary file and renamed, so a crash while checkpointing leaves the previous snapshot intact,
+ and are read in full before they're copied into the grid, so a truncated or invalid file leaves its parameters as they were.
+ */
+public class ModelSnapshot {
+
+	public static final int MAGIC = 0x4D4C504D; // "MLPM"
+	public static final int VERSION = 2;
+
+	private static final Pattern numberPattern = Pattern.compile("-?\\d+(\\.\\d+)?([eE][-+]?\\d+)?");
+
+	// iteration is the number of EM iterations the parameters have been trained for
+	public static void save(Grid grid, int iteration, String fileName) throws IOException
+	{
+		File target = new File(fileName);
+		File temp = new File(fileName + ".tmp");
+
+		// The previous snapshot is kept if this one can't be written:
+		try
+		{
+			if(isJson(fileName))
+				writeJson(grid, iteration, temp);
+			else
+				writeBinary(grid, iteration, temp);
+		}
+		catch(IOException e)
+		{
+			temp.delete();
+			throw e;
+		}
+
+		Files.move(temp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Copies the snapshot into the grid's parameters, which must have the same size and alphabet, and are only changed
+	// if the whole snapshot could be read
+	// Returns the number of iterations the parameters were trained for
+	public static int load(Grid grid, String fileName) throws IOException
+	{
+		if(isJson(fileName))
+			return readJson(grid, fileName);
+
+		return readBinary(grid, fileName);
+	}
+
+	private static boolean isJson(String fileName)
+	{
+		return fileName.toLowerCase().endsWith(".json");
+	}
+
+	private static void writeBinary(Grid grid, int iteration, File file) throws IOException
+	{
+		Parameters params = grid.getParameters();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try
+		{
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(grid.getRows());
+			out.writeInt(grid.getColumns());
+			out.writeInt(iteration);
+
+			int[] rewards = params.getAlphabet().getRewards();
+			out.writeInt(rewards.length);
+			for(int reward : rewards)
+				out.writeInt(reward);
+
+			params.getTransitionStructure().write(out);
+			for(double value : params.getInitialArray())
+				out.writeDouble(value);
+			for(double value : params.getTransitionArray())
+				out.writeDouble(value);
+			for(double value : params.getEmissionArray())
+				out.writeDouble(value);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static int readBinary(Grid grid, String fileName) throws IOException
+	{
+		Parameters params = grid.getParameters();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+		try
+		{
+			if(in.readInt() != MAGIC)
+				throw new IOException(fileName + " is not a model snapshot");
+			int version = in.readInt();
+			if(version != 1 && version != VERSION)
+				throw new IOException(fileName + " has an unsupported version " + version);
+
+			int rows = in.readInt();
+			int columns = in.readInt();
+			int iteration = in.readInt();
+
+			int[] rewards = new int[in.readInt()];
+			for(int i = 0; i < rewards.length; i++)
+				rewards[i] = in.readInt();
+			checkShape(grid, fileName, rows, columns, rewards);
+
+			TransitionStructure structure = params.getTransitionStructure();
+			if(version != 1 && !TransitionStructure.read(in).hasSameEdges(structure))
+				throw new IOException(fileName + " has a different transition structure from the grid");
+
+			double[] initial = new double[params.getInitialArray().length];
+			double[] transition = new double[params.getTransitionArray().length];
+			double[] emission = new double[params.getEmissionArray().length];
+			readDoubles(in, initial);
+			if(version == 1)
+			{
+				double[] matrix = new double[structure.getNumStates()*structure.getNumStates()];
+				readDoubles(in, matrix);
+				copyEdges(matrix, structure, transition);
+			}
+			else
+				readDoubles(in, transition);
+			readDoubles(in, emission);
+
+			copyInto(params, initial, transition, emission);
+			return iteration;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private static void readDoubles(DataInputStream in, double[] values) throws IOException
+	{
+		for(int i = 0; i < values.length; i++)
+			values[i] = in.readDouble();
+	}
+
+	// Only called once the whole snapshot has been read:
+	private static void copyInto(Parameters params, double[] initial, double[] transition, double[] emission)
+	{
+		System.arraycopy(initial, 0, params.getInitialArray(), 0, initial.length);
+		System.arraycopy(transition, 0, params.getTransitionArray(), 0, transition.length);
+		System.arraycopy(emission, 0, params.getEmissionArray(), 0, emission.length);
+	}
+
+	// Takes the values of the structure's edges from a full transition matrix, [from*numStates + to]
+	private static void copyEdges(double[] matrix, TransitionStructure structure, double[] transition)
+	{
+		int numStates = structure.getNumStates();
+		int[] successorStart = structure.getSuccessorStart();
+		int[] successors = structure.getSuccessors();
+		for(int from = 0; from < numStates; from++)
+		{
+			for(int k = successorStart[from]; k < successorStart[from + 1]; k++)
+				transition[k] = matrix[from*numStates + successors[k]];
+		}
+	}
+
+	// Rows of the arrays are written as nested arrays, e.g. "transition": [[from 0 ...], [from 1 ...]]
+	private static void writeJson(Grid grid, int iteration, File file) throws IOException
+	{
+		Parameters params = grid.getParameters();
+		Writer out = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file), 1 << 16), StandardCharsets.UTF_8);
+		try
+		{
+			out.write("{\n");
+			out.write("\t\"rows\": " + grid.getRows() + ",\n");
+			out.write("\t\"columns\": " + grid.getColumns() + ",\n");
+			out.write("\t\"iteration\": " + iteration + ",\n");
+
+			int[] rewards = params.getAlphabet().getRewards();
+			StringBuilder line = new StringBuilder("\t\"rewards\": [");
+			for(int i = 0; i < rewards.length; i++)
+				line.append(i == 0 ? "" : ", ").append(rewards[i]);
+			out.write(line.append("],\n").toString());
+
+			writeJsonArray(out, "initial", params.getInitialArray(), params.getNumStates());
+			out.write(",\n");
+			TransitionStructure structure = params.getTransitionStructure();
+			if(structure.isDense())
+			{
+				writeJsonArray(out, "transition", params.getTransitionArray(), params.getNumStates());
+			}
+			else
+			{
+				int[] successorStart = structure.getSuccessorStart();
+				line = new StringBuilder("\t\"successorStart\": [");
+				for(int i = 0; i < successorStart.length; i++)
+					line.append(i == 0 ? "" : ", ").append(successorStart[i]);
+				out.write(line.append("],\n").toString());
+
+				writeJsonRows(out, "successors", successorStart, structure.getSuccessors(), null);
+				out.write(",\n");
+				writeJsonRows(out, "transition", successorStart, null, params.getTransitionArray());
+			}
+			out.write(",\n");
+			writeJsonArray(out, "emission", params.getEmissionArray(), params.getNumSymbols());
+			out.write("\n}\n");
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static void writeJsonArray(Writer out, String name, double[] values, int rowLength) throws IOException
+	{
+		boolean nested = rowLength != values.length;
+		StringBuilder line = new StringBuilder();
+		line.append("\t\"").append(name).append("\": [");
+		for(int i = 0; i < values.length; i++)
+		{
+			if(nested && i % rowLength == 0)
+				line.append(i == 0 ? "\n\t\t[" : "],\n\t\t[");
+			else if(i > 0)
+				line.append(", ");
+			appendJsonNumber(line, name, values[i]);
+		}
+		line.append(nested ? "]\n\t]" : "]");
+		out.write(line.toString());
+	}
+
+	// One nested array per row, from rowStart[row] to rowStart[row + 1] of either ints or doubles
+	private static void writeJsonRows(Writer out, String name, int[] rowStart, int[] ints, double[] doubles) throws IOException
+	{
+		StringBuilder line = new StringBuilder();
+		line.append("\t\"").append(name).append("\": [");
+		for(int row = 0; row + 1 < rowStart.length; row++)
+		{
+			line.append(row == 0 ? "\n\t\t[" : "],\n\t\t[");
+			for(int k = rowStart[row]; k < rowStart[row + 1]; k++)
+			{
+				if(k > rowStart[row])
+					line.append(", ");
+				if(ints != null)
+					line.append(ints[k]);
+				else
+					appendJsonNumber(line, name, doubles[k]);
+			}
+		}
+		line.append(rowStart.length > 1 ? "]\n\t]" : "]");
+		out.write(line.toString());
+	}
+
+	private static void appendJsonNumber(StringBuilder line, String name, double value) throws IOException
+	{
+		if(Double.isNaN(value) || Double.isInfinite(value))
+			throw new IOException("The " + name + " parameters include " + value + ", which JSON can't hold, save a binary snapshot instead");
+
+		line.append(value);
+	}
+
+	// Only reads the layout written by writeJson, not JSON in general
+	private static int readJson(Grid grid, String fileName) throws IOException
+	{
+		Parameters params = grid.getParameters();
+		String json = new String(Files.readAllBytes(new File(fileName).toPath()), StandardCharsets.UTF_8);
+
+		int rows = (int) readJsonNumbers(json, "rows", fileName)[0];
+		int columns = (int) readJsonNumbers(json, "columns", fileName)[0];
+		int iteration = (int) readJsonNumbers(json, "iteration", fileName)[0];
+
+		double[] rewardValues = readJsonNumbers(json, "rewards", fileName);
+		int[] rewards = new int[rewardValues.length];
+		for(int i = 0; i < rewards.length; i++)
+			rewards[i] = (int) rewardValues[i];
+		checkShape(grid, fileName, rows, columns, rewards);
+
+		TransitionStructure structure = params.getTransitionStructure();
+		double[] initial = new double[params.getInitialArray().length];
+		double[] transition = new double[params.getTransitionArray().length];
+		double[] emission = new double[params.getEmissionArray().length];
+		copyJsonNumbers(json, "initial", fileName, initial);
+		if(json.contains("\"successors\""))
+		{
+			if(!Arrays.equals(readJsonNumbers(json, "successorStart", fileName), toDoubles(structure.getSuccessorStart()))
+					|| !Arrays.equals(readJsonNumbers(json, "successors", fileName), toDoubles(structure.getSuccessors())))
+				throw new IOException(fileName + " has a different transition structure from the grid");
+
+			copyJsonNumbers(json, "transition", fileName, transition);
+		}
+		else
+		{
+			// A full matrix, as written for a dense grid and by earlier versions:
+			double[] matrix = new double[structure.getNumStates()*structure.getNumStates()];
+			copyJsonNumbers(json, "transition", fileName, matrix);
+			copyEdges(matrix, structure, transition);
+		}
+		copyJsonNumbers(json, "emission", fileName, emission);
+
+		copyInto(params, initial, transition, emission);
+		return iteration;
+	}
+
+	private static void copyJsonNumbers(String json, String name, String fileName, double[] values) throws IOException
+	{
+		double[] read = readJsonNumbers(json, name, fileName);
+		if(read.length != values.length)
+			throw new IOException(fileName + " has " + read.length + " " + name + " values, expected " + values.length);
+
+		System.arraycopy(read, 0, values, 0, values.length);
+	}
+
+	private static double[] toDoubles(int[] values)
+	{
+		double[] doubles = new double[values.length];
+		for(int i = 0; i < values.length; i++)
+			doubles[i] = values[i];
+
+		return doubles;
+	}
+
+	// Returns every number in the value of a field, up to the next field or the end of the object
+	private static double[] readJsonNumbers(String json, String name, String fileName) throws IOException
+	{
+		int start = json.indexOf("\"" + name + "\"");
+		if(start == -1)
+			throw new IOException(fileName + " is missing the field " + name);
+		start = json.indexOf(':', start) + 1;
+
+		int end = json.indexOf('"', start);
+		if(end == -1)
+			end = json.length();
+
+		Matcher m = numberPattern.matcher(json.substring(start, end));
+		double[] values = new double[16];
+		int count = 0;
+		while(m.find())
+		{
+			if(count == values.length)
+				values = Arrays.copyOf(values, 2*count);
+			values[count++] = Double.parseDouble(m.group());
+		}
+		return Arrays.copyOf(values, count);
+	}
+
+	private static void checkShape(Grid grid, String fileName, int rows, int columns, int[] rewards) throws IOException
+	{
+		if(rows != grid.getRows() || columns != grid.getColumns())
+			throw new IOException(fileName + " is a " + rows + "x" + columns + " model, the grid is " + grid.getRows() + "x" + grid.getColumns());
+
+		if(!Arrays.equals(rewards, grid.getAlphabet().getRewards()))
+			throw new IOException(fileName + " was trained on the rewards " + Arrays.toString(rewards) + ", the grid uses " + grid.getAlphabet().toHeader());
+	}
+}
@@ -1,20 +1,24 @@
 package mlap_prog;
 
-import java.util.HashMap;
-
 public class Move {
 	
 	private int reward;
 	private Cell cell;
+	
+	// Index of the reward in the alphabet, looked up once when the move is read:
+	private int symbol;
 
-	private HashMap<Cell, Double> forwardProb, backwardProb;
+	// Position of this move within its episode, used to index the episode's lattice:
+	private Episode episode;
+	private int index;
 	
-	public Move(Cell cell, int reward)
+	public Move(Episode episode, int index, Cell cell, int reward, int symbol)
 	{
+		this.episode = episode;
+		this.index = index;
 		this.reward = reward;
+		this.symbol = symbol;
 		this.cell = cell;
-		forwardProb = new HashMap<Cell, Double>();
-		backwardProb = new HashMap<Cell, Double>();
 	}
 	
 	public Cell getCell()
@@ -27,37 +31,34 @@ public class Move {
 		return reward;
 	}
 	
-	public void setFowardProb(Cell cell, double val)
+	public int getSymbol()
 	{
-		forwardProb.put(cell, val);
+		return symbol;
 	}
 	
-	public double getForwardProb(Cell cell)
+	public Episode getEpisode()
 	{
-		return forwardProb.get(cell);
+		return episode;
 	}
 	
-	public void setBackwardProb(Cell cell, double val)
+	public int getIndex()
+	{
+		return index;
+	}
+	
+	public double getForwardProb(Cell cell)
 	{
-		backwardProb.put(cell, val);
+		return episode.getLattice().getForward(index, cell.getId());
 	}
 	
 	public double getBackwardProb(Cell cell)
 	{
-		return backwardProb.get(cell);
+		return episode.getLattice().getBackward(index, cell.getId());
 	}
 	
 	// P(Cell = cell) at this move in the series:
 	public double getMarginalCellProb(Cell cell)
 	{
-		double numerator = forwardProb.get(cell) * backwardProb.get(cell);
-		double denominator = 0.0;	
-		
-		for(Cell c : forwardProb.keySet())
-		{
-			denominator += forwardProb.get(c) * backwardProb.get(c);
-		}
-		
-		return numerator/denominator;
+		return episode.getLattice().getMarginal(index, cell.getId());
 	}
 }
@@ -0,0 +1,102 @@
+package mlap_prog;
+
+/*
+ Stepwise (online) EM for episodes that arrive one at a time, see Cappe and Moulines (2009) and Liang and Klein (2009).
+
+ Each episode runs forward-backward against the current parameters and its expected counts are added to a mini-batch.
+ Once the batch is full the running counts are blended with it using the step size eta_k = (k + 2)^-decay,
+ where k is the number of updates so far, and the grid's parameters are re-estimated from the running counts.
+ The running counts start as the counts expected under the grid's starting parameters of one episode as long as the
+ average episode of the first batch, see ExpectedCounts.setFromParameters.
+ The work per episode is a single forward-backward pass, no matter how many episodes came before it.
+
+ decay must be in (0.5, 1], smaller values forget old episodes faster. Not thread safe, episodes should be added from one thread.
+ */
+public class OnlineEM {
+
+	private Grid grid;
+	private int batchSize;
+	private double decay;
+
+	// Running counts of one average episode, started from the grid's parameters at the first update:
+	private ExpectedCounts statistics;
+
+	// Counts of the episodes added since the last update:
+	private ExpectedCounts batch;
+
+	// Lattice shared by every episode, grown to fit the longest one:
+	private Lattice workspace;
+
+	private int numUpdates, numEpisodes;
+
+	public OnlineEM(Grid grid, int batchSize, double decay)
+	{
+		if(batchSize < 1)
+			throw new IllegalArgumentException("The batch size must be at least 1, got " + batchSize);
+		if(decay <= 0.5 || decay > 1.0)
+			throw new IllegalArgumentException("The decay must be in (0.5, 1], got " + decay);
+
+		this.grid = grid;
+		this.batchSize = batchSize;
+		this.decay = decay;
+
+		TransitionStructure structure = grid.getTransitionStructure();
+		int numSymbols = grid.params.getNumSymbols();
+		statistics = new ExpectedCounts(structure, numSymbols);
+		batch = new ExpectedCounts(structure, numSymbols);
+	}
+
+	// Runs the E-step for one episode, updating the grid's parameters once a batch has been collected
+	// Returns true if the parameters were updated
+	public boolean addEpisode(Episode ep)
+	{
+		if(workspace == null || workspace.getCapacity() < ep.getLength())
+			workspace = new Lattice(ep.getLength(), grid.states.length);
+		workspace.setLength(ep.getLength());
+
+		grid.addEpisodeCounts(ep, workspace, batch);
+		numEpisodes++;
+
+		if(batch.getNumEpisodes() < batchSize)
+			return false;
+
+		update();
+		return true;
+	}
+
+	// Updates the parameters from a partly filled batch, e.g. once the stream has ended
+	public void flush()
+	{
+		if(batch.getNumEpisodes() > 0)
+			update();
+	}
+
+	private void update()
+	{
+		if(numUpdates == 0)
+			statistics.setFromParameters(grid.params, batch.getAverageLength());
+
+		double eta = Math.pow(numUpdates + 2, -decay);
+		statistics.blend(batch, eta);
+		batch.clear();
+		numUpdates++;
+
+		grid.maximisationStep(statistics);
+	}
+
+	public int getNumUpdates()
+	{
+		return numUpdates;
+	}
+
+	public int getNumEpisodes()
+	{
+		return numEpisodes;
+	}
+
+	// Log likelihood per episode of the last batch, under the parameters from before it was used
+	public double getBatchLogLikelihood()
+	{
+		return statistics.getLogLikelihood();
+	}
+}
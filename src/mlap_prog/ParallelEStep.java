@@ -0,0 +1,91 @@
+package mlap_prog;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ParallelEStep {
+
+	private Grid grid;
+	private List<Episode> episodes;
+	private ForkJoinPool pool;
+
+	// One accumulator per partition of the episode list, merged before the M-step:
+	private ExpectedCounts[] partials;
+
+	// One kernel per partition when the grid batches its E-step through DenseKernel, otherwise null:
+	private DenseKernel[] kernels;
+
+	public ParallelEStep(Grid grid, List<Episode> episodes, ForkJoinPool pool, TransitionStructure structure, int numSymbols)
+	{
+		this.grid = grid;
+		this.episodes = episodes;
+		this.pool = pool;
+
+		// Never more partitions than episodes, otherwise one per worker thread:
+		int numPartitions = Math.max(1, Math.min(pool.getParallelism(), episodes.size()));
+		partials = new ExpectedCounts[numPartitions];
+		for(int p = 0; p < numPartitions; p++)
+			partials[p] = new ExpectedCounts(structure, numSymbols);
+
+		if(grid.createKernel() != null)
+		{
+			kernels = new DenseKernel[numPartitions];
+			for(int p = 0; p < numPartitions; p++)
+				kernels[p] = grid.createKernel();
+		}
+	}
+
+	// Runs forward/backward and count accumulation for every episode across the pool, then merges into total
+	public void run(ExpectedCounts total)
+	{
+		pool.invoke(new EStepTask(0, partials.length));
+
+		total.clear();
+		for(ExpectedCounts partial : partials)
+			total.merge(partial);
+	}
+
+	// Splits the partitions in half until a single partition is left to process
+	private class EStepTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private int from, to;
+
+		EStepTask(int from, int to)
+		{
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from == 1)
+			{
+				ExpectedCounts counts = partials[from];
+				counts.clear();
+
+				// Episodes are dealt out in turn so long and short episodes are spread across partitions:
+				if(kernels != null)
+				{
+					grid.addEpisodeCounts(episodes, from, partials.length, kernels[from], counts);
+				}
+				else
+				{
+					for(int i = from; i < episodes.size(); i += partials.length)
+					{
+						Episode ep = episodes.get(i);
+						grid.addEpisodeCounts(ep, ep.getLattice(counts.getNumStates()), counts);
+					}
+				}
+			}
+			else
+			{
+				int mid = (from + to) >>> 1;
+				invokeAll(new EStepTask(from, mid), new EStepTask(mid, to));
+			}
+		}
+	}
+}
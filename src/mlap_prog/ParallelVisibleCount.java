@@ -0,0 +1,118 @@
+package mlap_prog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Counts fully observed episodes across a pool, every partition counts into its own VisibleCounts which are merged at the end
+public class ParallelVisibleCount {
+
+	// Streamed episodes are read on the calling thread and counted in chunks of this many:
+	private static final int CHUNK_SIZE = 4096;
+
+	private ForkJoinPool pool;
+
+	// One set of counts per partition, merged into the total:
+	private VisibleCounts[] partials;
+
+	public ParallelVisibleCount(ForkJoinPool pool, TransitionStructure structure, int numSymbols)
+	{
+		this.pool = pool;
+
+		partials = new VisibleCounts[pool.getParallelism()];
+		for(int p = 0; p < partials.length; p++)
+			partials[p] = new VisibleCounts(structure, numSymbols);
+	}
+
+	// Adds the counts of every episode to total
+	public void run(Iterable<Episode> episodes, VisibleCounts total)
+	{
+		if(episodes instanceof MappedEpisodeSource)
+		{
+			run((MappedEpisodeSource) episodes, total);
+		}
+		else if(episodes instanceof List)
+		{
+			run((List<Episode>) episodes, total);
+		}
+		else
+		{
+			ArrayList<Episode> chunk = new ArrayList<Episode>(CHUNK_SIZE);
+			for(Episode ep : episodes)
+			{
+				chunk.add(ep);
+				if(chunk.size() == CHUNK_SIZE)
+				{
+					run(chunk, total);
+					chunk.clear();
+				}
+			}
+			run(chunk, total);
+		}
+	}
+
+	public void run(List<Episode> episodes, VisibleCounts total)
+	{
+		pool.invoke(new CountTask(episodes, null, 0, partials.length));
+		mergeInto(total);
+	}
+
+	// Each partition counts a contiguous range of episodes straight from the mapping
+	public void run(MappedEpisodeSource source, VisibleCounts total)
+	{
+		pool.invoke(new CountTask(null, source, 0, partials.length));
+		mergeInto(total);
+	}
+
+	private void mergeInto(VisibleCounts total)
+	{
+		for(VisibleCounts partial : partials)
+		{
+			total.merge(partial);
+			partial.clear();
+		}
+	}
+
+	// Splits the partitions in half until a single partition is left to count
+	private class CountTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private List<Episode> episodes;
+		private MappedEpisodeSource source;
+		private int from, to;
+
+		CountTask(List<Episode> episodes, MappedEpisodeSource source, int from, int to)
+		{
+			this.episodes = episodes;
+			this.source = source;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from == 1)
+			{
+				VisibleCounts counts = partials[from];
+				if(source != null)
+				{
+					long numEpisodes = source.getNumEpisodes();
+					counts.addEpisodes(source, (int) (numEpisodes*from/partials.length), (int) (numEpisodes*(from + 1)/partials.length));
+				}
+				else
+				{
+					for(int i = from; i < episodes.size(); i += partials.length)
+						counts.addEpisode(episodes.get(i));
+				}
+			}
+			else
+			{
+				int mid = (from + to) >>> 1;
+				invokeAll(new CountTask(episodes, source, from, mid), new CountTask(episodes, source, mid, to));
+			}
+		}
+	}
+}
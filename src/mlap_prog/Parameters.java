@@ -0,0 +1,204 @@
+package mlap_prog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class Parameters {
+
+	private int numStates, numSymbols;
+
+	// Maps each reward to its symbol id:
+	private Alphabet alphabet;
+
+	// The transitions that are stored, any other transition is 0:
+	private TransitionStructure structure;
+
+	// Flat arrays indexed by state id (row*columns + col), edge and symbol id:
+	private double[] initial; // [state]
+	private double[] transition; // [edge], see TransitionStructure
+	private double[] emission; // [state*numSymbols + symbol]
+
+	public Parameters(TransitionStructure structure, Alphabet alphabet)
+	{
+		this.numStates = structure.getNumStates();
+		this.alphabet = alphabet;
+		this.numSymbols = alphabet.size();
+		this.structure = structure;
+		initial = new double[numStates];
+		transition = new double[structure.getNumEdges()];
+		emission = new double[numStates*numSymbols];
+	}
+
+	public Alphabet getAlphabet()
+	{
+		return alphabet;
+	}
+
+	public int getNumStates()
+	{
+		return numStates;
+	}
+
+	public int getNumSymbols()
+	{
+		return numSymbols;
+	}
+
+	public TransitionStructure getTransitionStructure()
+	{
+		return structure;
+	}
+
+	// Replaces the transitions with ones for a new structure of the same states, every transition starts at 0
+	public void setTransitionStructure(TransitionStructure structure)
+	{
+		if(structure.getNumStates() != numStates)
+			throw new IllegalArgumentException("Expected a structure of " + numStates + " states, got " + structure.getNumStates());
+
+		this.structure = structure;
+		transition = new double[structure.getNumEdges()];
+	}
+
+	public double getInitial(int state)
+	{
+		return initial[state];
+	}
+
+	// 0 for a transition the structure doesn't allow
+	public double getTransition(int fromState, int toState)
+	{
+		int edge = structure.getEdge(fromState, toState);
+		return edge < 0 ? 0.0 : transition[edge];
+	}
+
+	public double getEmission(int state, int symbol)
+	{
+		return emission[state*numSymbols + symbol];
+	}
+
+	public void setInitial(int state, double val)
+	{
+		initial[state] = val;
+	}
+
+	// Only 0 can be set for a transition the structure doesn't allow
+	public void setTransition(int fromState, int toState, double val)
+	{
+		int edge = structure.getEdge(fromState, toState);
+		if(edge >= 0)
+			transition[edge] = val;
+		else if(val != 0.0)
+			throw new IllegalArgumentException("The transition structure has no transition from state " + fromState + " to " + toState);
+	}
+
+	public void setEmission(int state, int symbol, double val)
+	{
+		emission[state*numSymbols + symbol] = val;
+	}
+
+	// Direct access to the backing arrays for the inner loops of the E-step:
+
+	public double[] getInitialArray()
+	{
+		return initial;
+	}
+
+	public double[] getTransitionArray()
+	{
+		return transition;
+	}
+
+	public double[] getEmissionArray()
+	{
+		return emission;
+	}
+
+	// Overwrites every parameter with the values held in another instance of the same size:
+	public void copyFrom(Parameters other)
+	{
+		checkShape(other);
+		System.arraycopy(other.initial, 0, initial, 0, initial.length);
+		System.arraycopy(other.transition, 0, transition, 0, transition.length);
+		System.arraycopy(other.emission, 0, emission, 0, emission.length);
+	}
+
+	// Writes the initial, transition and emission arrays, read back by read() into parameters of the same size and structure
+	public void write(DataOutputStream out) throws IOException
+	{
+		writeDoubles(out, initial);
+		writeDoubles(out, transition);
+		writeDoubles(out, emission);
+	}
+
+	public void read(DataInputStream in) throws IOException
+	{
+		readDoubles(in, initial);
+		readDoubles(in, transition);
+		readDoubles(in, emission);
+	}
+
+	private static void writeDoubles(DataOutputStream out, double[] values) throws IOException
+	{
+		for(double value : values)
+			out.writeDouble(value);
+	}
+
+	private static void readDoubles(DataInputStream in, double[] values) throws IOException
+	{
+		for(int i = 0; i < values.length; i++)
+			values[i] = in.readDouble();
+	}
+
+	// Exchanges the backing arrays with another instance of the same size, so the M-step can double buffer without copying
+	// Cells keep pointing at the same Parameters, so they see the swapped values straight away
+	public void swap(Parameters other)
+	{
+		checkShape(other);
+
+		double[] swap = initial;
+		initial = other.initial;
+		other.initial = swap;
+
+		swap = transition;
+		transition = other.transition;
+		other.transition = swap;
+
+		swap = emission;
+		emission = other.emission;
+		other.emission = swap;
+	}
+
+	// Euclidean distance between every parameter of the two instances
+	public double distance(Parameters other)
+	{
+		checkShape(other);
+		double total = squaredDistance(initial, other.initial);
+		total += squaredDistance(transition, other.transition);
+		total += squaredDistance(emission, other.emission);
+		return Math.sqrt(total);
+	}
+
+	private static double squaredDistance(double[] a, double[] b)
+	{
+		double total = 0.0;
+		for(int i = 0; i < a.length; i++)
+			total += (a[i] - b[i])*(a[i] - b[i]);
+
+		return total;
+	}
+
+	private void checkShape(Parameters other)
+	{
+		if(other.numStates != numStates || other.numSymbols != numSymbols || !structure.hasSameEdges(other.structure))
+			throw new IllegalArgumentException("The parameters have different sizes or transition structures");
+	}
+
+	public void clear()
+	{
+		Arrays.fill(initial, 0.0);
+		Arrays.fill(transition, 0.0);
+		Arrays.fill(emission, 0.0);
+	}
+}
@@ -0,0 +1,196 @@
+package mlap_prog;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/*
+ Answers smoothing queries P(h_t = cell | episode) on a trained grid, for any episode and time step.
+
+ An episode's posteriors come from one forward/backward pass into a lattice owned by the query, so the lattices EM
+ writes to are left alone, and are normalised once per time step. The posterior matrix of every episode queried is kept
+ in a least recently used cache bounded by a memory budget, so repeated queries don't run forward/backward again.
+ Episodes are cached by identity; a streamed source creates new episodes on every pass, so hold on to the ones to be queried.
+ The parameters are read when an episode is first queried, call refresh() after training again to drop the cached posteriors.
+ Not thread safe.
+ */
+public class PosteriorQuery {
+
+	public static final long DEFAULT_BUDGET = 64L << 20; // 64 MB
+
+	// Rough size of a cache entry besides its matrix, the map entry and the Posteriors object:
+	private static final long ENTRY_OVERHEAD = 96;
+
+	private Grid grid;
+	private int numStates;
+
+	private long budget, cachedBytes;
+	private LinkedHashMap<Episode, Posteriors> cache = new LinkedHashMap<Episode, Posteriors>(16, 0.75f, true);
+	private int hits, misses;
+
+	// Forward/backward buffers, only reallocated when an episode is longer than any seen before:
+	private Lattice lattice;
+
+	// The posteriors of one episode, indexed [t*numStates + state] like a Lattice
+	public static class Posteriors {
+
+		private int length, numStates;
+		private double[] matrix;
+		private double logProb;
+
+		Posteriors(int length, int numStates)
+		{
+			this.length = length;
+			this.numStates = numStates;
+			matrix = new double[length*numStates];
+		}
+
+		public int getLength()
+		{
+			return length;
+		}
+
+		public int getNumStates()
+		{
+			return numStates;
+		}
+
+		// P(h_t = state | episode):
+		public double getProb(int t, int state)
+		{
+			return matrix[t*numStates + state];
+		}
+
+		// Shared with the cache, so it mustn't be modified
+		public double[] getMatrix()
+		{
+			return matrix;
+		}
+
+		// The matrix copied out as [t][state]:
+		public double[][] toArray()
+		{
+			double[][] rows = new double[length][numStates];
+			for(int t = 0; t < length; t++)
+				System.arraycopy(matrix, t*numStates, rows[t], 0, numStates);
+
+			return rows;
+		}
+
+		// log P(v_1, ..., v_T) of the episode's rewards:
+		public double getLogProb()
+		{
+			return logProb;
+		}
+	}
+
+	public PosteriorQuery(Grid grid)
+	{
+		this(grid, DEFAULT_BUDGET);
+	}
+
+	// budget is the number of bytes of posteriors to keep, 0 caches nothing
+	public PosteriorQuery(Grid grid, long budget)
+	{
+		if(budget < 0)
+			throw new IllegalArgumentException("The cache budget can't be negative, got " + budget);
+
+		this.grid = grid;
+		this.budget = budget;
+		numStates = grid.getParameters().getNumStates();
+	}
+
+	// Drops every cached episode, for parameters that have changed since they were computed
+	public void refresh()
+	{
+		cache.clear();
+		cachedBytes = 0;
+		numStates = grid.getParameters().getNumStates();
+	}
+
+	// P(h_t = cell | episode):
+	public double getProb(Episode ep, int t, Cell cell)
+	{
+		if(t < 0 || t >= ep.getLength())
+			throw new IllegalArgumentException("Time step " + t + " is outside an episode of length " + ep.getLength());
+
+		return getPosteriors(ep).getProb(t, cell.getId());
+	}
+
+	// The posteriors of every time step, from the cache if the episode has been queried since the last refresh
+	public Posteriors getPosteriors(Episode ep)
+	{
+		Posteriors posteriors = cache.get(ep);
+		if(posteriors != null)
+		{
+			hits++;
+			return posteriors;
+		}
+		misses++;
+
+		posteriors = calcPosteriors(ep);
+
+		// Episodes bigger than the whole budget are returned without being cached:
+		long size = getSize(posteriors);
+		if(size <= budget)
+		{
+			Iterator<Posteriors> eldest = cache.values().iterator();
+			while(cachedBytes + size > budget)
+			{
+				cachedBytes -= getSize(eldest.next());
+				eldest.remove();
+			}
+
+			cache.put(ep, posteriors);
+			cachedBytes += size;
+		}
+		return posteriors;
+	}
+
+	public int getHits()
+	{
+		return hits;
+	}
+
+	public int getMisses()
+	{
+		return misses;
+	}
+
+	public int getNumCached()
+	{
+		return cache.size();
+	}
+
+	public long getCachedBytes()
+	{
+		return cachedBytes;
+	}
+
+	public long getBudget()
+	{
+		return budget;
+	}
+
+	private Posteriors calcPosteriors(Episode ep)
+	{
+		int length = ep.getLength();
+		if(length == 0)
+			throw new IllegalArgumentException("An episode without moves has no posteriors");
+
+		if(lattice == null || lattice.getNumStates() != numStates || lattice.getCapacity() < length)
+			lattice = new Lattice(length, numStates);
+		lattice.setLength(length);
+
+		grid.calcForwardBack(ep, lattice);
+
+		Posteriors posteriors = new Posteriors(length, numStates);
+		lattice.getPosteriors(posteriors.matrix);
+		posteriors.logProb = lattice.getLogProb();
+		return posteriors;
+	}
+
+	private static long getSize(Posteriors posteriors)
+	{
+		return 8L*posteriors.matrix.length + ENTRY_OVERHEAD;
+	}
+}
@@ -0,0 +1,112 @@
+package mlap_prog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+public class RestartRunner {
+
+	private int restarts, threads;
+
+	// The model with the highest log likelihood after the last run:
+	private Grid bestGrid;
+	private double bestLikelihood;
+	private int bestRun;
+
+	public RestartRunner(int restarts, int threads)
+	{
+		this.restarts = restarts;
+		this.threads = threads;
+	}
+
+	// Trains one model per restart on separate threads and returns the one with the best log likelihood
+	// The factory must return a new, initialised model each time as models don't share any state
+	public Grid run(final Supplier<Grid> factory, String task, PrintStream out)
+	{
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try
+		{
+			ArrayList<Future<Run>> runs = new ArrayList<Future<Run>>();
+			for(int i = 0; i < restarts; i++)
+			{
+				runs.add(executor.submit(new Callable<Run>(){
+
+					@Override
+					public Run call()
+					{
+						// Each run prints to its own buffer so the output isn't interleaved:
+						ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+						Grid grid = factory.get();
+						grid.setOutput(new PrintStream(buffer, true));
+						double likelihood = grid.findHiddenParameters();
+						return new Run(grid, likelihood, buffer.toString());
+					}
+				}));
+			}
+
+			bestGrid = null;
+			bestLikelihood = Double.NEGATIVE_INFINITY;
+			bestRun = 0;
+
+			// Print every run in order and keep the best one:
+			for(int i = 0; i < restarts; i++)
+			{
+				Run run = runs.get(i).get();
+				out.println(String.format("\t ******* TASK %s RUN %d/%d *******\n", task, i + 1, restarts));
+				out.print(run.log);
+				out.println(String.format("\t ******* END OF TASK %s RUN %d/%d *******\n", task, i + 1, restarts));
+
+				if(!Double.isNaN(run.likelihood) && (bestGrid == null || run.likelihood > bestLikelihood))
+				{
+					bestGrid = run.grid;
+					bestLikelihood = run.likelihood;
+					bestRun = i + 1;
+				}
+			}
+			return bestGrid;
+		}
+		catch(InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the restarts to finish", e);
+		}
+		catch(ExecutionException e)
+		{
+			throw new IllegalStateException("A restart failed to train", e.getCause());
+		}
+		finally
+		{
+			executor.shutdownNow();
+		}
+	}
+
+	public double getBestLikelihood()
+	{
+		return bestLikelihood;
+	}
+
+	public int getBestRun()
+	{
+		return bestRun;
+	}
+
+	private static class Run {
+
+		Grid grid;
+		double likelihood;
+		String log;
+
+		Run(Grid grid, double likelihood, String log)
+		{
+			this.grid = grid;
+			this.likelihood = likelihood;
+			this.log = log;
+		}
+	}
+}
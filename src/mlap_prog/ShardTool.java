@@ -0,0 +1,96 @@
+package mlap_prog;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/*
+ Command line steps for estimating one model from shards of episode files in separate processes.
+
+ ShardTool init <episodes> <model> <seed> [rows columns]  writes random starting parameters for the alphabet of a shard
+ ShardTool count <episodes> <out> [rows columns]          counts the visible cells and rewards of one shard
+ ShardTool estep <episodes> <model> <out> [rows columns]  runs one E-step over one shard at the parameters in a model snapshot
+ ShardTool merge <out> <counts> <counts> ...              adds counts files together, in any order or grouping
+ ShardTool model <counts> <model>                         normalises merged counts into a model snapshot
+
+ For task 1 style data every shard is counted, the counts merged and turned into a model. EM starts from init, then each
+ iteration runs estep on every shard against the last model, merges the counts and writes the next model, e.g.
+
+ java mlap_prog.ShardTool estep part1.dat model.bin part1.counts & java mlap_prog.ShardTool estep part2.dat model.bin part2.counts & wait
+ java mlap_prog.ShardTool merge all.counts part1.counts part2.counts
+ java mlap_prog.ShardTool model all.counts model.bin
+
+ Episodes are streamed, so a shard never has to fit in memory. The grid is 4x4 unless the size is given.
+ */
+public class ShardTool {
+
+	public static void main(String[] args) throws IOException
+	{
+		String command = args.length > 0 ? args[0] : "";
+		if(command.equals("init") && (args.length == 4 || args.length == 6))
+		{
+			Grid grid = openShard(args[1], args, 4);
+			grid.makeGridRandom(new Random(Long.parseLong(args[3])));
+			grid.saveParameters(args[2]);
+			System.out.println("Wrote random parameters to " + args[2]);
+		}
+		else if(command.equals("count") && (args.length == 3 || args.length == 5))
+		{
+			Grid grid = openShard(args[1], args, 3);
+			VisibleCounts counts = grid.countVisible();
+			CountsFile.save(grid, counts, args[2]);
+			System.out.println("Counted " + counts.getNumEpisodes() + " episodes of " + args[1] + " into " + args[2]);
+		}
+		else if(command.equals("estep") && (args.length == 4 || args.length == 6))
+		{
+			Grid grid = openShard(args[1], args, 4);
+			grid.warmStart(args[2]);
+			ExpectedCounts counts = grid.countExpected();
+			CountsFile.save(grid, counts, args[3]);
+			System.out.println(String.format("E-step of %s at iteration %d: %d episodes, Log likelihood = %f", args[1], grid.getCompletedIterations(), counts.getNumEpisodes(), counts.getLogLikelihood()));
+		}
+		else if(command.equals("merge") && args.length >= 3)
+		{
+			CountsFile.merge(args[1], Arrays.copyOfRange(args, 2, args.length));
+			System.out.println("Merged " + (args.length - 2) + " counts files into " + args[1]);
+		}
+		else if(command.equals("model") && args.length == 3)
+		{
+			writeModel(args[1], args[2]);
+		}
+		else
+			throw new IllegalArgumentException("Please specify one of: init episodes model seed [rows columns], count episodes out [rows columns], estep episodes model out [rows columns], merge out counts..., model counts model");
+	}
+
+	// The grid size is given by the two arguments after the fixed ones, if there are any
+	private static Grid openShard(String fileName, String[] args, int sizeIndex)
+	{
+		int rows = args.length > sizeIndex ? Integer.parseInt(args[sizeIndex]) : 4;
+		int columns = args.length > sizeIndex ? Integer.parseInt(args[sizeIndex + 1]) : 4;
+		return new Grid(rows, columns, fileName, true);
+	}
+
+	// Expected counts become the parameters of the next EM iteration, visible counts the maximum likelihood estimate
+	private static void writeModel(String countsFile, String modelFile) throws IOException
+	{
+		CountsFile.Header header = CountsFile.readHeader(countsFile);
+		Grid grid = CountsFile.createGrid(header);
+
+		if(header.getKind() == CountsFile.VISIBLE)
+		{
+			VisibleCounts counts = new VisibleCounts(grid.getTransitionStructure(), header.getAlphabet().size());
+			CountsFile.addVisible(grid, countsFile, counts);
+			counts.maximise(grid.getParameters());
+			System.out.println("Estimated " + modelFile + " from " + counts.getNumEpisodes() + " episodes");
+		}
+		else
+		{
+			ExpectedCounts counts = new ExpectedCounts(grid.getTransitionStructure(), header.getAlphabet().size());
+			CountsFile.addExpected(grid, countsFile, counts);
+			counts.maximise(grid.getParameters());
+			grid.completedIterations = header.getIteration() + 1;
+			System.out.println(String.format("EM iteration %d, Log likelihood = %f (%d episodes), wrote %s", grid.getCompletedIterations(), counts.getLogLikelihood(), counts.getNumEpisodes(), modelFile));
+		}
+		grid.saveParameters(modelFile);
+	}
+}
@@ -0,0 +1,102 @@
+package mlap_prog;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+
+// A worker in another process, reached over a socket to an EMWorkerServer
+public class SocketEMWorker implements EMWorker {
+
+	private Socket socket;
+	private DataInputStream in;
+	private DataOutputStream out;
+
+	// The shard's grid size and rewards, sent by the worker when it's connected:
+	private int rows, columns;
+	private Alphabet alphabet;
+
+	public SocketEMWorker(String host, int port) throws IOException
+	{
+		socket = new Socket(host, port);
+		try
+		{
+			socket.setTcpNoDelay(true);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+
+			if(in.readInt() != EMWorkerServer.MAGIC)
+				throw new IOException(host + ":" + port + " is not an EM worker");
+			int version = in.readInt();
+			if(version != EMWorkerServer.VERSION)
+				throw new IOException(host + ":" + port + " speaks an unsupported version " + version);
+
+			rows = in.readInt();
+			columns = in.readInt();
+			int[] rewards = new int[in.readInt()];
+			for(int i = 0; i < rewards.length; i++)
+				rewards[i] = in.readInt();
+			alphabet = new Alphabet(rewards);
+		}
+		catch(IOException e)
+		{
+			socket.close();
+			throw e;
+		}
+	}
+
+	// Parses "host:port"
+	public static SocketEMWorker connect(String address) throws IOException
+	{
+		int colon = address.lastIndexOf(':');
+		if(colon == -1)
+			throw new IllegalArgumentException("Expected host:port, got " + address);
+
+		return new SocketEMWorker(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+	}
+
+	public int getRows()
+	{
+		return rows;
+	}
+
+	public int getColumns()
+	{
+		return columns;
+	}
+
+	public Alphabet getAlphabet()
+	{
+		return alphabet;
+	}
+
+	@Override
+	public void sendParameters(Parameters params) throws IOException
+	{
+		out.writeInt(EMWorkerServer.PARAMETERS);
+		params.write(out);
+		out.flush();
+	}
+
+	@Override
+	public void receiveCounts(ExpectedCounts counts) throws IOException
+	{
+		counts.read(in);
+	}
+
+	@Override
+	public void close() throws IOException
+	{
+		try
+		{
+			out.writeInt(EMWorkerServer.CLOSE);
+			out.flush();
+		}
+		finally
+		{
+			socket.close();
+		}
+	}
+}
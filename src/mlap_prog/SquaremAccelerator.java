@@ -0,0 +1,274 @@
+package mlap_prog;
+
+import java.util.Arrays;
+
+/*
+ SQUAREM acceleration for EM (Varadhan and Roland 2008, scheme S3).
+
+ Every cycle takes two plain EM steps theta0 -> theta1 -> theta2, then jumps to
+ theta' = theta0 - 2*alpha*r + alpha^2*v, where r = theta1 - theta0, v = theta2 - 2*theta1 + theta0 and alpha = -|r|/|v|.
+ alpha = -1 gives theta2 back, so the jump is never shorter than plain EM. Each distribution in theta' is projected back
+ onto the probability simplex, transitions only onto the edges of the grid's transition structure. EM never moves a
+ probability away from 0, so only the entries that are nonzero in theta0 are projected, the rest stay at 0 as they would
+ under plain EM, e.g. the transitions through the walls of a dense grid.
+
+ theta2 is evaluated by a plain E-step like theta0 and theta1, and the jump is built after its M-step, which gives theta3.
+ The next E-step is run at theta'. If its log likelihood is worse than at theta2 the jump is undone and EM carries on from
+ theta3, which EM guarantees is no worse, with a shorter maximum step. Otherwise the M-step from theta' starts the next cycle.
+ The likelihoods the grid reports therefore never decrease, as with plain EM.
+
+ Neither the gain of a jump nor that of a single EM step next to one says whether EM has converged: a jump can be accepted
+ just above theta2, and plain EM steps slow down on the plateaus the jumps cross. The likelihood tolerance is therefore
+ checked once per cycle, against the gain per E-step from theta0 to an accepted jump, or to theta3 after a rejected one,
+ see getConvergenceDelta().
+ */
+public class SquaremAccelerator {
+
+	// The maximum step grows by this factor after every accepted jump at the limit, and shrinks by it after a rejection:
+	private static final double STEP_FACTOR = 4.0;
+
+	// Projected probabilities that were nonzero in theta0 are kept at least this large, so the jump doesn't add zeros EM
+	// can't move away from:
+	private static final double MIN_PROBABILITY = 1e-10;
+
+	private Parameters params, newParams;
+	private TransitionStructure structure;
+
+	// theta0, theta1 and theta2 of the current cycle and the plain EM step theta3 a rejected jump falls back to, allocated once:
+	private Parameters theta0, theta1, theta2, theta3;
+
+	// 0: waiting for theta1, 1: waiting for theta2, 2: waiting for theta3, 3: waiting for the likelihood at theta'
+	private int state = 0;
+
+	// Log likelihood at theta2 while a jump is being tried, and at theta0 of the current cycle:
+	private double likelihood, cycleStart;
+
+	// E-steps run since theta0 of the current cycle, leaving out a rejected jump, none before the first cycle:
+	private int cycleSteps = -1;
+
+	// See getConvergenceDelta():
+	private double convergenceDelta;
+	private double maxStep = 1.0;
+	private double alpha;
+
+	// |theta1 - theta0|^2 and |theta2 - 2*theta1 + theta0|^2:
+	private double rNorm, vNorm;
+
+	private int accepted, rejected;
+
+	// Sorted copy of the nonzero entries of the distribution being projected:
+	private double[] scratch;
+
+	public SquaremAccelerator(Parameters params, Parameters newParams, TransitionStructure structure)
+	{
+		this.params = params;
+		this.newParams = newParams;
+		this.structure = structure;
+
+		theta0 = new Parameters(structure, params.getAlphabet());
+		theta1 = new Parameters(structure, params.getAlphabet());
+		theta2 = new Parameters(structure, params.getAlphabet());
+		theta3 = new Parameters(structure, params.getAlphabet());
+		scratch = new double[Math.max(params.getNumStates(), params.getNumSymbols())];
+	}
+
+	// Called with the log likelihood of every E-step, returns false if the jump was rejected and the M-step should be skipped
+	public boolean afterEStep(double logLikelihood)
+	{
+		convergenceDelta = Double.POSITIVE_INFINITY;
+		if(state != 3)
+		{
+			// The first E-step, or theta3 after a rejected jump, which ends that cycle and starts the next:
+			cycleSteps++;
+			if(state == 0)
+				startCycle(logLikelihood);
+
+			likelihood = logLikelihood;
+			return true;
+		}
+
+		state = 0;
+		if(!(logLikelihood >= likelihood))
+		{
+			// Worse, or undefined: go back to the plain EM step and be more careful next time
+			params.copyFrom(theta3);
+			maxStep = Math.max(1.0, maxStep/STEP_FACTOR);
+			rejected++;
+			return false;
+		}
+
+		if(alpha == -maxStep)
+			maxStep *= STEP_FACTOR;
+		accepted++;
+		cycleSteps++;
+
+		// theta' is theta0 of the next cycle:
+		startCycle(logLikelihood);
+		return true;
+	}
+
+	private void startCycle(double logLikelihood)
+	{
+		if(cycleSteps > 0)
+			convergenceDelta = (logLikelihood - cycleStart)/cycleSteps;
+
+		cycleStart = logLikelihood;
+		cycleSteps = 0;
+	}
+
+	/*
+	 The change in log likelihood the grid's stopping rules should judge the E-step just accepted by afterEStep by:
+	 at the end of a cycle its whole gain per E-step, comparable with the gain of one plain EM step,
+	 and infinity inside a cycle so a tolerance can't be met there
+	 */
+	public double getConvergenceDelta()
+	{
+		return convergenceDelta;
+	}
+
+	// Called after every M-step, the grid has just swapped so newParams holds the parameters the E-step ran on
+	public void afterMStep()
+	{
+		if(state == 0)
+		{
+			theta0.copyFrom(newParams);
+			state = 1;
+		}
+		else if(state == 1)
+		{
+			theta1.copyFrom(newParams);
+			state = 2;
+		}
+		else if(state == 2)
+		{
+			// params is theta3 and newParams is theta2:
+			theta2.copyFrom(newParams);
+			theta3.copyFrom(params);
+			extrapolate();
+			state = 3;
+		}
+	}
+
+	private void extrapolate()
+	{
+		rNorm = 0.0;
+		vNorm = 0.0;
+		addSquaredNorms(theta0.getInitialArray(), theta1.getInitialArray(), theta2.getInitialArray());
+		addSquaredNorms(theta0.getTransitionArray(), theta1.getTransitionArray(), theta2.getTransitionArray());
+		addSquaredNorms(theta0.getEmissionArray(), theta1.getEmissionArray(), theta2.getEmissionArray());
+
+		// EM has already stopped moving, params is left at theta3:
+		if(vNorm == 0.0)
+		{
+			alpha = -1.0;
+			return;
+		}
+
+		alpha = Math.max(-maxStep, Math.min(-1.0, -Math.sqrt(rNorm/vNorm)));
+
+		// theta' would be theta2, which theta3 already improves on:
+		if(alpha == -1.0)
+			return;
+
+		jump(theta0.getInitialArray(), theta1.getInitialArray(), theta2.getInitialArray(), params.getInitialArray());
+		jump(theta0.getTransitionArray(), theta1.getTransitionArray(), theta2.getTransitionArray(), params.getTransitionArray());
+		jump(theta0.getEmissionArray(), theta1.getEmissionArray(), theta2.getEmissionArray(), params.getEmissionArray());
+
+		project();
+	}
+
+	private void addSquaredNorms(double[] t0, double[] t1, double[] t2)
+	{
+		for(int i = 0; i < t0.length; i++)
+		{
+			double r = t1[i] - t0[i];
+			double v = t2[i] - 2*t1[i] + t0[i];
+			rNorm += r*r;
+			vNorm += v*v;
+		}
+	}
+
+	// Overwrites out with theta'
+	private void jump(double[] t0, double[] t1, double[] t2, double[] out)
+	{
+		for(int i = 0; i < t0.length; i++)
+		{
+			double r = t1[i] - t0[i];
+			double v = t2[i] - 2*t1[i] + t0[i];
+			out[i] = t0[i] - 2*alpha*r + alpha*alpha*v;
+		}
+	}
+
+	private void project()
+	{
+		int numStates = params.getNumStates();
+		int numSymbols = params.getNumSymbols();
+		int[] successorStart = structure.getSuccessorStart();
+		double[] initial = params.getInitialArray();
+		double[] transition = params.getTransitionArray();
+		double[] emission = params.getEmissionArray();
+
+		projectRange(initial, theta0.getInitialArray(), 0, numStates);
+		for(int s = 0; s < numStates; s++)
+		{
+			projectRange(emission, theta0.getEmissionArray(), s*numSymbols, numSymbols);
+			projectRange(transition, theta0.getTransitionArray(), successorStart[s], successorStart[s + 1] - successorStart[s]);
+		}
+	}
+
+	/*
+	 Euclidean projection of values[from, from + length) onto the simplex (Duchi et al. 2008), floored at MIN_PROBABILITY,
+	 over the entries that are nonzero in support, the others are set to 0
+	 A row that is 0 throughout support, e.g. of a state EM never reaches, is left at 0
+	 */
+	private void projectRange(double[] values, double[] support, int from, int length)
+	{
+		int count = 0;
+		for(int i = from; i < from + length; i++)
+		{
+			if(support[i] != 0.0)
+				scratch[count++] = values[i];
+		}
+		double tau = count > 0 ? simplexThreshold(count) : 0.0;
+
+		double sum = 0.0;
+		for(int i = from; i < from + length; i++)
+		{
+			values[i] = support[i] != 0.0 ? Math.max(values[i] - tau, MIN_PROBABILITY) : 0.0;
+			sum += values[i];
+		}
+		if(sum == 0.0)
+			return;
+		for(int i = from; i < from + length; i++)
+			values[i] /= sum;
+	}
+
+	// The threshold tau such that the values in scratch[0, length) minus tau, clipped at 0, sum to 1
+	private double simplexThreshold(int length)
+	{
+		Arrays.sort(scratch, 0, length);
+
+		double sum = 0.0;
+		double tau = 0.0;
+		for(int j = 1; j <= length; j++)
+		{
+			// scratch is ascending, so walk it from the largest value down:
+			double u = scratch[length - j];
+			sum += u;
+			double candidate = (sum - 1.0)/j;
+			if(u - candidate > 0)
+				tau = candidate;
+		}
+		return tau;
+	}
+
+	public int getAccepted()
+	{
+		return accepted;
+	}
+
+	public int getRejected()
+	{
+		return rejected;
+	}
+}
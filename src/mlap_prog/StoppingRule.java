@@ -0,0 +1,17 @@
+package mlap_prog;
+
+// Decides when EM has run for long enough, checked after every E-step and before its M-step
+public interface StoppingRule {
+
+	// Called before the first iteration of each run
+	public void reset();
+
+	/*
+	 iterations counts the E-steps of this run so far, including the current one
+	 delta is the change in log likelihood from the previous iteration
+	 parameterChange is the distance the parameters moved in the previous M-step, infinite before the first one
+	 */
+	public boolean shouldStop(int iterations, double logLikelihood, double delta, double parameterChange, long elapsedMillis);
+
+	public String getDescription();
+}
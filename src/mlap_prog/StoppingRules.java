@@ -0,0 +1,175 @@
+package mlap_prog;
+
+import java.util.List;
+
+// The stopping rules EM can be configured with, a run stops as soon as any one of its rules is met
+public class StoppingRules {
+
+	// |delta| < tolerance, the original rule with a tolerance of 0.01
+	public static StoppingRule absoluteTolerance(final double tolerance)
+	{
+		return new StoppingRule(){
+
+			public void reset()
+			{
+			}
+
+			public boolean shouldStop(int iterations, double logLikelihood, double delta, double parameterChange, long elapsedMillis)
+			{
+				return Math.abs(delta) < tolerance;
+			}
+
+			public String getDescription()
+			{
+				return "log likelihood changed by less than " + tolerance;
+			}
+		};
+	}
+
+	// |delta| < tolerance*|log likelihood|, which doesn't need retuning as the data set grows
+	public static StoppingRule relativeTolerance(final double tolerance)
+	{
+		return new StoppingRule(){
+
+			public void reset()
+			{
+			}
+
+			public boolean shouldStop(int iterations, double logLikelihood, double delta, double parameterChange, long elapsedMillis)
+			{
+				return Math.abs(delta) < tolerance*Math.abs(logLikelihood);
+			}
+
+			public String getDescription()
+			{
+				return "log likelihood changed by less than " + tolerance + " of its value";
+			}
+		};
+	}
+
+	public static StoppingRule maxIterations(final int maxIterations)
+	{
+		return new StoppingRule(){
+
+			public void reset()
+			{
+			}
+
+			public boolean shouldStop(int iterations, double logLikelihood, double delta, double parameterChange, long elapsedMillis)
+			{
+				return iterations >= maxIterations;
+			}
+
+			public String getDescription()
+			{
+				return "reached " + maxIterations + " iterations";
+			}
+		};
+	}
+
+	public static StoppingRule maxTime(final long maxMillis)
+	{
+		return new StoppingRule(){
+
+			public void reset()
+			{
+			}
+
+			public boolean shouldStop(int iterations, double logLikelihood, double delta, double parameterChange, long elapsedMillis)
+			{
+				return elapsedMillis >= maxMillis;
+			}
+
+			public String getDescription()
+			{
+				return "ran for " + maxMillis + " ms";
+			}
+		};
+	}
+
+	// The Euclidean distance moved by every parameter in the last M-step is below tolerance
+	public static StoppingRule parameterChange(final double tolerance)
+	{
+		return new StoppingRule(){
+
+			public void reset()
+			{
+			}
+
+			public boolean shouldStop(int iterations, double logLikelihood, double delta, double parameterChange, long elapsedMillis)
+			{
+				return parameterChange < tolerance;
+			}
+
+			public String getDescription()
+			{
+				return "parameters moved less than " + tolerance;
+			}
+		};
+	}
+
+	/*
+	 Early stopping on episodes left out of training: stops once the held out log likelihood hasn't improved
+	 by more than minImprovement for patience iterations in a row, as the model is then fitting noise in the training data.
+	 The held out episodes only need a forward pass, so the check costs a fraction of an E-step.
+	 The parameters with the best held out log likelihood are kept, and put back into the grid when the rule stops the run,
+	 findHiddenParameters still returns the training log likelihood of the last E-step.
+	 */
+	public static StoppingRule heldOutPlateau(final Grid grid, final List<Episode> heldOut, final int patience, final double minImprovement)
+	{
+		return new StoppingRule(){
+
+			private Lattice workspace;
+			private double best;
+			private int sinceBest, bestIteration;
+			private Parameters bestParams;
+
+			public void reset()
+			{
+				best = Double.NEGATIVE_INFINITY;
+				sinceBest = 0;
+				bestIteration = 0;
+
+				// The grid's structure can change between runs:
+				bestParams = new Parameters(grid.getTransitionStructure(), grid.getAlphabet());
+			}
+
+			public boolean shouldStop(int iterations, double logLikelihood, double delta, double parameterChange, long elapsedMillis)
+			{
+				double heldOutLikelihood = 0.0;
+				for(int i = 0; i < heldOut.size(); i++)
+				{
+					Episode ep = heldOut.get(i);
+					if(workspace == null || workspace.getCapacity() < ep.getLength())
+						workspace = new Lattice(ep.getLength(), grid.states.length);
+					workspace.setLength(ep.getLength());
+
+					grid.calcForward(ep, workspace);
+					heldOutLikelihood += workspace.getLogProb();
+				}
+
+				if(heldOutLikelihood > best + minImprovement)
+				{
+					best = heldOutLikelihood;
+					sinceBest = 0;
+					bestIteration = iterations;
+					bestParams.copyFrom(grid.getParameters());
+					return false;
+				}
+
+				sinceBest++;
+				if(sinceBest < patience)
+					return false;
+
+				// The later iterations only fit the training data better, so the run ends on the best parameters:
+				grid.getParameters().copyFrom(bestParams);
+				return true;
+			}
+
+			public String getDescription()
+			{
+				return "held out log likelihood stopped improving for " + patience + " iterations, kept the parameters of iteration " + bestIteration + " with " + best;
+			}
+		};
+	}
+}
@@ -0,0 +1,279 @@
+package mlap_prog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+/*
+ The transitions that can have a non-zero probability, stored as compressed sparse rows.
+
+ Every allowed transition is an edge, numbered in the order of the successor rows. Parameters, ExpectedCounts and
+ VisibleCounts store one transition value per edge, so their size and every loop over them is O(edges) rather than O(states^2).
+ The edges of a dense structure are numbered from*numStates + to, the same as a full matrix.
+ */
+public class TransitionStructure {
+
+	private int numStates;
+
+	// Compressed sparse rows: the successors of state s are successors[successorStart[s]] to successors[successorStart[s+1] - 1],
+	// sorted by state id, and k is the number of the edge to successors[k]:
+	private int[] successorStart, successors;
+
+	// The same edges grouped by the state they lead to, predecessorEdges[k] is the number of the edge from predecessors[k]:
+	private int[] predecessorStart, predecessors, predecessorEdges;
+
+	// successorLists[from] holds the states from can move to, in any order
+	public TransitionStructure(int numStates, int[][] successorLists)
+	{
+		if(successorLists.length != numStates)
+			throw new IllegalArgumentException("Expected successors for " + numStates + " states, got " + successorLists.length);
+
+		int numEdges = 0;
+		for(int[] list : successorLists)
+			numEdges += list.length;
+
+		int[] start = new int[numStates + 1];
+		int[] edges = new int[numEdges];
+		int index = 0;
+		for(int from = 0; from < numStates; from++)
+		{
+			start[from] = index;
+			System.arraycopy(successorLists[from], 0, edges, index, successorLists[from].length);
+			index += successorLists[from].length;
+			Arrays.sort(edges, start[from], index);
+		}
+		start[numStates] = index;
+
+		init(numStates, start, edges);
+	}
+
+	private TransitionStructure(int numStates, int[] successorStart, int[] successors)
+	{
+		init(numStates, successorStart, successors);
+	}
+
+	// Checks the sorted rows and builds the predecessors with a counting sort, so they're sorted by state id too
+	private void init(int numStates, int[] successorStart, int[] successors)
+	{
+		this.numStates = numStates;
+		this.successorStart = successorStart;
+		this.successors = successors;
+
+		for(int from = 0; from < numStates; from++)
+		{
+			for(int k = successorStart[from]; k < successorStart[from + 1]; k++)
+			{
+				if(successors[k] < 0 || successors[k] >= numStates)
+					throw new IllegalArgumentException("State " + from + " has a successor " + successors[k] + " outside the " + numStates + " states");
+				if(k > successorStart[from] && successors[k] == successors[k - 1])
+					throw new IllegalArgumentException("The transition from " + from + " to " + successors[k] + " is listed twice");
+			}
+		}
+
+		predecessorStart = new int[numStates + 1];
+		predecessors = new int[successors.length];
+		predecessorEdges = new int[successors.length];
+		for(int to : successors)
+			predecessorStart[to + 1]++;
+		for(int s = 0; s < numStates; s++)
+			predecessorStart[s + 1] += predecessorStart[s];
+
+		int[] next = Arrays.copyOf(predecessorStart, numStates);
+		for(int from = 0; from < numStates; from++)
+		{
+			for(int k = successorStart[from]; k < successorStart[from + 1]; k++)
+			{
+				int slot = next[successors[k]]++;
+				predecessors[slot] = from;
+				predecessorEdges[slot] = k;
+			}
+		}
+	}
+
+	// Every state can move to every other state, including itself:
+	public static TransitionStructure dense(int numStates)
+	{
+		int[] start = new int[numStates + 1];
+		int[] edges = new int[numStates*numStates];
+		for(int from = 0; from < numStates; from++)
+		{
+			start[from + 1] = (from + 1)*numStates;
+			for(int to = 0; to < numStates; to++)
+				edges[from*numStates + to] = to;
+		}
+
+		return new TransitionStructure(numStates, start, edges);
+	}
+
+	// Moves to the cells above, below, left and right that aren't separated by a wall
+	public static TransitionStructure adjacent(int rows, int columns, List<Wall> walls)
+	{
+		int numStates = rows*columns;
+
+		// Walls block the transition in both directions:
+		HashSet<Long> blocked = new HashSet<Long>();
+		for(Wall wall : walls)
+		{
+			long c1 = wall.getFirstCell().getId();
+			long c2 = wall.getSecondCell().getId();
+			blocked.add(c1*numStates + c2);
+			blocked.add(c2*numStates + c1);
+		}
+
+		int[][] successorLists = new int[numStates][];
+		int[] neighbours = new int[4];
+		for(int x = 0; x < rows; x++)
+		{
+			for(int y = 0; y < columns; y++)
+			{
+				int from = x*columns + y;
+				int count = 0;
+				if(x > 0)
+					neighbours[count++] = from - columns;
+				if(y > 0)
+					neighbours[count++] = from - 1;
+				if(y < columns - 1)
+					neighbours[count++] = from + 1;
+				if(x < rows - 1)
+					neighbours[count++] = from + columns;
+
+				int allowed = 0;
+				for(int i = 0; i < count; i++)
+				{
+					if(!blocked.contains((long) from*numStates + neighbours[i]))
+						neighbours[allowed++] = neighbours[i];
+				}
+				successorLists[from] = Arrays.copyOf(neighbours, allowed);
+			}
+		}
+
+		return new TransitionStructure(numStates, successorLists);
+	}
+
+	public int getNumStates()
+	{
+		return numStates;
+	}
+
+	public int getNumEdges()
+	{
+		return successors.length;
+	}
+
+	// Every transition is allowed, as built by dense()
+	public boolean isDense()
+	{
+		return successors.length == (long) numStates*numStates;
+	}
+
+	// The number of the edge from one state to another, or -1 if the transition isn't allowed
+	public int getEdge(int from, int to)
+	{
+		if(isDense())
+			return from*numStates + to;
+
+		int k = Arrays.binarySearch(successors, successorStart[from], successorStart[from + 1], to);
+		return k < 0 ? -1 : k;
+	}
+
+	// The number of states from can move to:
+	public int getSuccessorCount(int from)
+	{
+		return successorStart[from + 1] - successorStart[from];
+	}
+
+	public int[] getSuccessorStart()
+	{
+		return successorStart;
+	}
+
+	public int[] getSuccessors()
+	{
+		return successors;
+	}
+
+	public int[] getPredecessorStart()
+	{
+		return predecessorStart;
+	}
+
+	public int[] getPredecessors()
+	{
+		return predecessors;
+	}
+
+	public int[] getPredecessorEdges()
+	{
+		return predecessorEdges;
+	}
+
+	// The same states and edges, true straight away for the same instance
+	public boolean hasSameEdges(TransitionStructure other)
+	{
+		if(other == this)
+			return true;
+
+		return other.numStates == numStates && Arrays.equals(other.successorStart, successorStart) && Arrays.equals(other.successors, successors);
+	}
+
+	// Writes int numStates, int numEdges, then int[numStates + 1] successorStart and int[numEdges] successors
+	// unless the structure is dense, which is all numStates^2 edges
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeInt(numStates);
+		out.writeInt(successors.length);
+		if(isDense())
+			return;
+
+		for(int start : successorStart)
+			out.writeInt(start);
+		for(int to : successors)
+			out.writeInt(to);
+	}
+
+	// Reads a structure written by write(), rejecting rows that aren't sorted or edges outside the states
+	public static TransitionStructure read(DataInputStream in) throws IOException
+	{
+		int numStates = in.readInt();
+		int numEdges = in.readInt();
+		if(numStates < 0 || numEdges < 0 || (long) numEdges > (long) numStates*numStates)
+			throw new IOException("Invalid transition structure of " + numStates + " states and " + numEdges + " edges");
+		if(numEdges == (long) numStates*numStates)
+			return dense(numStates);
+
+		int[] start = new int[numStates + 1];
+		for(int s = 0; s <= numStates; s++)
+		{
+			start[s] = in.readInt();
+			if(s > 0 ? start[s] < start[s - 1] : start[s] != 0)
+				throw new IOException("Invalid transition structure, the rows don't start in order");
+		}
+		if(start[numStates] != numEdges)
+			throw new IOException("Invalid transition structure, the rows hold " + start[numStates] + " of " + numEdges + " edges");
+
+		int[] edges = new int[numEdges];
+		for(int k = 0; k < numEdges; k++)
+			edges[k] = in.readInt();
+
+		for(int from = 0; from < numStates; from++)
+		{
+			for(int k = start[from] + 1; k < start[from + 1]; k++)
+			{
+				if(edges[k] <= edges[k - 1])
+					throw new IOException("Invalid transition structure, the successors of " + from + " aren't sorted");
+			}
+		}
+
+		try
+		{
+			return new TransitionStructure(numStates, start, edges);
+		}
+		catch(IllegalArgumentException e)
+		{
+			throw new IOException("Invalid transition structure: " + e.getMessage(), e);
+		}
+	}
+}
@@ -0,0 +1,234 @@
+package mlap_prog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/*
+ Counts of fully observed episodes, whose maximum likelihood parameters are the counts normalised once at the end.
+ Counters are primitive longs indexed the same way as Parameters, so billions of moves neither box nor overflow.
+ Every move must be an edge of the transition structure.
+ */
+public class VisibleCounts {
+
+	private int numStates, numSymbols;
+	private long numEpisodes;
+
+	// The transitions that are counted, one per edge:
+	private TransitionStructure structure;
+
+	private long[] initial; // episodes starting in each state
+	private long[] transition; // moves from one state to the next, [edge]
+	private long[] emission; // steps in each state with each symbol, [state*numSymbols + symbol]
+
+	public VisibleCounts(TransitionStructure structure, int numSymbols)
+	{
+		this.numStates = structure.getNumStates();
+		this.numSymbols = numSymbols;
+		this.structure = structure;
+		initial = new long[numStates];
+		transition = new long[structure.getNumEdges()];
+		emission = new long[numStates*numSymbols];
+	}
+
+	public int getNumStates()
+	{
+		return numStates;
+	}
+
+	public int getNumSymbols()
+	{
+		return numSymbols;
+	}
+
+	public TransitionStructure getTransitionStructure()
+	{
+		return structure;
+	}
+
+	public long getNumEpisodes()
+	{
+		return numEpisodes;
+	}
+
+	public long[] getInitialArray()
+	{
+		return initial;
+	}
+
+	public long[] getTransitionArray()
+	{
+		return transition;
+	}
+
+	public long[] getEmissionArray()
+	{
+		return emission;
+	}
+
+	// Every move of the episode must have a cell
+	public void addEpisode(Episode ep)
+	{
+		ArrayList<Move> moves = ep.getMoves();
+		if(moves.isEmpty())
+			return;
+
+		int from = getState(moves.get(0));
+		initial[from]++;
+		emission[from*numSymbols + moves.get(0).getSymbol()]++;
+		for(int t = 1; t < moves.size(); t++)
+		{
+			int to = getState(moves.get(t));
+			transition[getEdge(from, to)]++;
+			emission[to*numSymbols + moves.get(t).getSymbol()]++;
+			from = to;
+		}
+		numEpisodes++;
+	}
+
+	private static int getState(Move move)
+	{
+		if(move.getCell() == null)
+			throw new IllegalArgumentException("Move " + move.getIndex() + " of an episode has no visible cell");
+
+		return move.getCell().getId();
+	}
+
+	// Counts episodes first to end - 1 straight from the mapped file, without building Episode objects
+	public void addEpisodes(MappedEpisodeSource source, int first, int end)
+	{
+		if(!source.hasStates())
+			throw new IllegalArgumentException("The episode file has no visible cells to count");
+
+		for(int e = first; e < end; e++)
+		{
+			long start = source.getOffset(e);
+			long stop = source.getOffset(e + 1);
+			if(start == stop)
+				continue;
+
+			int from = getState(source, start);
+			initial[from]++;
+			emission[from*numSymbols + source.getSymbol(start)]++;
+			for(long step = start + 1; step < stop; step++)
+			{
+				int to = getState(source, step);
+				transition[getEdge(from, to)]++;
+				emission[to*numSymbols + source.getSymbol(step)]++;
+				from = to;
+			}
+			numEpisodes++;
+		}
+	}
+
+	private static int getState(MappedEpisodeSource source, long step)
+	{
+		int state = source.getState(step);
+		if(state < 0)
+			throw new IllegalArgumentException("Step " + step + " of the episode file has no visible cell");
+
+		return state;
+	}
+
+	private int getEdge(int from, int to)
+	{
+		int edge = structure.getEdge(from, to);
+		if(edge < 0)
+			throw new IllegalArgumentException("A move from state " + from + " to " + to + " isn't allowed by the transition structure");
+
+		return edge;
+	}
+
+	public void clear()
+	{
+		numEpisodes = 0;
+		Arrays.fill(initial, 0);
+		Arrays.fill(transition, 0);
+		Arrays.fill(emission, 0);
+	}
+
+	// Adds the counts held in other to these counts
+	public void merge(VisibleCounts other)
+	{
+		if(other.numStates != numStates || other.numSymbols != numSymbols)
+			throw new IllegalArgumentException("Can't merge counts of " + other.numStates + " states and " + other.numSymbols + " symbols into " + numStates + " and " + numSymbols);
+		if(!structure.hasSameEdges(other.structure))
+			throw new IllegalArgumentException("Can't merge counts of a different transition structure");
+
+		numEpisodes += other.numEpisodes;
+		add(initial, other.initial);
+		add(transition, other.transition);
+		add(emission, other.emission);
+	}
+
+	private static void add(long[] total, long[] values)
+	{
+		for(int i = 0; i < total.length; i++)
+			total[i] += values[i];
+	}
+
+	public void write(DataOutputStream out) throws IOException
+	{
+		out.writeLong(numEpisodes);
+		writeLongs(out, initial);
+		writeLongs(out, transition);
+		writeLongs(out, emission);
+	}
+
+	// Replaces these counts with ones written by write(), which must have the same number of states, edges and symbols
+	public void read(DataInputStream in) throws IOException
+	{
+		numEpisodes = in.readLong();
+		readLongs(in, initial);
+		readLongs(in, transition);
+		readLongs(in, emission);
+	}
+
+	private static void writeLongs(DataOutputStream out, long[] values) throws IOException
+	{
+		for(long value : values)
+			out.writeLong(value);
+	}
+
+	private static void readLongs(DataInputStream in, long[] values) throws IOException
+	{
+		for(int i = 0; i < values.length; i++)
+			values[i] = in.readLong();
+	}
+
+	// Normalises the counts into parameters, states that were never left or never visited get rows of zeros,
+	// the missing parameters MLAP prints as assumed zero
+	public void maximise(Parameters out)
+	{
+		if(out.getNumStates() != numStates || out.getNumSymbols() != numSymbols || !structure.hasSameEdges(out.getTransitionStructure()))
+			throw new IllegalArgumentException("The parameters have a different size or transition structure from the counts");
+
+		int[] successorStart = structure.getSuccessorStart();
+		double[] outTransition = out.getTransitionArray();
+		for(int s = 0; s < numStates; s++)
+		{
+			out.setInitial(s, numEpisodes > 0 ? (double) initial[s]/numEpisodes : 0.0);
+
+			int start = successorStart[s];
+			int end = successorStart[s + 1];
+			long transitionTotal = sum(transition, start, end - start);
+			for(int k = start; k < end; k++)
+				outTransition[k] = transitionTotal > 0 ? (double) transition[k]/transitionTotal : 0.0;
+
+			long emissionTotal = sum(emission, s*numSymbols, numSymbols);
+			for(int symbol = 0; symbol < numSymbols; symbol++)
+				out.setEmission(s, symbol, emissionTotal > 0 ? (double) emission[s*numSymbols + symbol]/emissionTotal : 0.0);
+		}
+	}
+
+	private static long sum(long[] values, int from, int length)
+	{
+		long total = 0;
+		for(int i = from; i < from + length; i++)
+			total += values[i];
+
+		return total;
+	}
+}
@@ -0,0 +1,226 @@
+package mlap_prog;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/*
+ Finds the most likely sequence of cells for an episode's rewards.
+
+ Works in log space so long episodes don't underflow, and only loops over the predecessor edges of the grid's
+ transition structure, so an OptimisedGrid only considers adjacent cells that aren't separated by a wall.
+ The log parameters are taken from the grid when the decoder is built, call refresh() after training again.
+ */
+public class ViterbiDecoder {
+
+	private Grid grid;
+	private int numStates, numSymbols;
+
+	private int[] predecessorStart, predecessors;
+
+	// Log parameters, the transitions are aligned with the predecessor edges:
+	private double[] logInitial, logTransition, logEmission;
+
+	// Used by decode(Episode, int[]) on the calling thread:
+	private Workspace workspace = new Workspace();
+
+	// One workspace per partition for decodeAll, kept between calls:
+	private Workspace[] partitionWorkspaces;
+
+	// Buffers for one decode, only reallocated when an episode is longer than any seen before
+	public static class Workspace {
+
+		private int capacity;
+		private double[] delta, next;
+		private int[] backpointers; // [t*numStates + state], the best previous state
+
+		void ensureCapacity(int length, int numStates)
+		{
+			if(delta == null || delta.length != numStates)
+			{
+				delta = new double[numStates];
+				next = new double[numStates];
+				capacity = 0;
+			}
+			if(capacity < length)
+			{
+				backpointers = new int[length*numStates];
+				capacity = length;
+			}
+		}
+	}
+
+	public ViterbiDecoder(Grid grid)
+	{
+		this.grid = grid;
+		refresh();
+	}
+
+	// Takes the log of the grid's current parameters and transition structure
+	public void refresh()
+	{
+		Parameters params = grid.getParameters();
+		TransitionStructure structure = grid.getTransitionStructure();
+
+		numStates = params.getNumStates();
+		numSymbols = params.getNumSymbols();
+		predecessorStart = structure.getPredecessorStart();
+		predecessors = structure.getPredecessors();
+
+		logInitial = new double[numStates];
+		logEmission = new double[numStates*numSymbols];
+		for(int s = 0; s < numStates; s++)
+		{
+			logInitial[s] = Math.log(params.getInitial(s));
+			for(int symbol = 0; symbol < numSymbols; symbol++)
+				logEmission[s*numSymbols + symbol] = Math.log(params.getEmission(s, symbol));
+		}
+
+		logTransition = new double[predecessors.length];
+		int[] predecessorEdges = structure.getPredecessorEdges();
+		double[] transition = params.getTransitionArray();
+		for(int k = 0; k < predecessors.length; k++)
+			logTransition[k] = Math.log(transition[predecessorEdges[k]]);
+	}
+
+	public double decode(Episode ep, int[] path)
+	{
+		return decode(ep, path, workspace);
+	}
+
+	/*
+	 Fills the first ep.getLength() entries of path with the state ids of the most likely cells
+	 Returns the log probability of that path and the rewards, or -Infinity if the rewards are impossible under the model,
+	 in which case path is filled with -1
+	 */
+	public double decode(Episode ep, int[] path, Workspace ws)
+	{
+		int length = ep.getLength();
+		ArrayList<Move> moves = ep.getMoves();
+		ws.ensureCapacity(length, numStates);
+
+		double[] delta = ws.delta;
+		double[] next = ws.next;
+		int[] backpointers = ws.backpointers;
+
+		int symbol = moves.get(0).getSymbol();
+		for(int s = 0; s < numStates; s++)
+			delta[s] = logInitial[s] + logEmission[s*numSymbols + symbol];
+
+		for(int t = 1; t < length; t++)
+		{
+			symbol = moves.get(t).getSymbol();
+			int offset = t*numStates;
+			for(int to = 0; to < numStates; to++)
+			{
+				// Best predecessor of to, the first one is kept if they are all impossible:
+				double best = Double.NEGATIVE_INFINITY;
+				int bestFrom = predecessorStart[to] < predecessorStart[to + 1] ? predecessors[predecessorStart[to]] : -1;
+				for(int k = predecessorStart[to]; k < predecessorStart[to + 1]; k++)
+				{
+					double value = delta[predecessors[k]] + logTransition[k];
+					if(value > best)
+					{
+						best = value;
+						bestFrom = predecessors[k];
+					}
+				}
+				next[to] = best + logEmission[to*numSymbols + symbol];
+				backpointers[offset + to] = bestFrom;
+			}
+
+			double[] swap = delta;
+			delta = next;
+			next = swap;
+		}
+
+		double best = Double.NEGATIVE_INFINITY;
+		int state = -1;
+		for(int s = 0; s < numStates; s++)
+		{
+			if(delta[s] > best)
+			{
+				best = delta[s];
+				state = s;
+			}
+		}
+
+		if(state == -1)
+		{
+			Arrays.fill(path, 0, length, -1);
+			return best;
+		}
+
+		// Follow the backpointers from the most likely final state:
+		path[length - 1] = state;
+		for(int t = length - 1; t > 0; t--)
+		{
+			state = backpointers[t*numStates + state];
+			path[t - 1] = state;
+		}
+		return best;
+	}
+
+	// Decodes every episode, across the pool if it isn't null, and returns the state ids of each episode's path
+	public int[][] decodeAll(final List<Episode> episodes, ForkJoinPool pool)
+	{
+		final int[][] paths = new int[episodes.size()][];
+		for(int i = 0; i < paths.length; i++)
+			paths[i] = new int[episodes.get(i).getLength()];
+
+		if(pool == null)
+		{
+			for(int i = 0; i < paths.length; i++)
+				decode(episodes.get(i), paths[i], workspace);
+
+			return paths;
+		}
+
+		int numPartitions = Math.max(1, Math.min(pool.getParallelism(), episodes.size()));
+		if(partitionWorkspaces == null || partitionWorkspaces.length != numPartitions)
+		{
+			partitionWorkspaces = new Workspace[numPartitions];
+			for(int p = 0; p < numPartitions; p++)
+				partitionWorkspaces[p] = new Workspace();
+		}
+
+		pool.invoke(new DecodeTask(episodes, paths, 0, numPartitions));
+		return paths;
+	}
+
+	// Splits the partitions in half until a single partition is left to decode
+	private class DecodeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		private List<Episode> episodes;
+		private int[][] paths;
+		private int from, to;
+
+		DecodeTask(List<Episode> episodes, int[][] paths, int from, int to)
+		{
+			this.episodes = episodes;
+			this.paths = paths;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if(to - from == 1)
+			{
+				// Episodes are dealt out in turn so long and short episodes are spread across partitions:
+				for(int i = from; i < episodes.size(); i += partitionWorkspaces.length)
+					decode(episodes.get(i), paths[i], partitionWorkspaces[from]);
+			}
+			else
+			{
+				int mid = (from + to) >>> 1;
+				invokeAll(new DecodeTask(episodes, paths, from, mid), new DecodeTask(episodes, paths, mid, to));
+			}
+		}
+	}
+}